@@ -0,0 +1,69 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+// The per-atom "motor" forces given in the knot file (each atom's xf,yf,zf). Most atoms
+// don't have one, so only the atoms whose force is non-zero get visited.
+public class AtomForces implements ForceTerm
+{
+  private static final long serialVersionUID = 1L;
+  private KnotStorage atoms;
+  private int[]   targets; // The atoms' numbers
+  private int[]   strandOf;
+  private float[] fx, fy, fz, mag2;
+
+  public void bind(KnotData kd)
+  {
+    atoms = kd.getStorage();
+    int count = 0;
+    for(int a=0; a<atoms.numAtoms(); a++)
+      if(atoms.getXf(a)!=0.0f || atoms.getYf(a)!=0.0f || atoms.getZf(a)!=0.0f)
+        count++;
+    targets = new int[count];
+    strandOf = new int[count];
+    fx = new float[count];
+    fy = new float[count];
+    fz = new float[count];
+    mag2 = new float[count];
+    count = 0;
+    for(int i=0; i<atoms.numStrands(); i++)
+      for(int a=atoms.strandStart(i); a<atoms.strandStart(i+1); a++)
+        if(atoms.getXf(a)!=0.0f || atoms.getYf(a)!=0.0f || atoms.getZf(a)!=0.0f)
+        {
+          targets[count] = a;
+          strandOf[count] = i;
+          fx[count] = atoms.getXf(a);
+          fy[count] = atoms.getYf(a);
+          fz[count] = atoms.getZf(a);
+          mag2[count] = fx[count]*fx[count] + fy[count]*fy[count] + fz[count]*fz[count];
+          count++;
+        }
+  }
+
+  public void apply(int iteration, double[] sumSq)
+  {
+    for(int k=0; k<targets.length; k++)
+    {
+      atoms.move(targets[k], fx[k], fy[k], fz[k]);
+      sumSq[strandOf[k]] += mag2[k];
+    }
+  }
+
+  public int numAtoms() // How many atoms actually have a force on them
+  {
+    return targets.length;
+  }
+}
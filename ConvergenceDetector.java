@@ -0,0 +1,27 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.*;
+
+// Decides when a run has finished tightening. KnotData hands it each iteration's metrics in turn.
+public interface ConvergenceDetector extends Serializable
+{
+  // Returns true once the run counts as converged
+  public boolean hasConverged(KnotMetrics metrics);
+  // Forgets everything seen so far - KnotData calls this whenever the knot gets resampled
+  public void reset();
+}
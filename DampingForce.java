@@ -0,0 +1,101 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.*;
+import java.nio.*;
+
+// Viscosity: takes back a fraction of how far each atom has moved since the last time this was
+// applied, so the knot can't jump about. Add it last, so it sees the moves made by all the others.
+public class DampingForce implements ForceTerm
+{
+  private static final long serialVersionUID = 1L;
+  private float viscosity; // 0 does nothing, 1 freezes the knot
+  private KnotStorage atoms;
+  private transient FloatBuffer px, py, pz; // Where each atom was last time (in the same kind of memory as the atoms)
+
+  public DampingForce(float viscosity)
+  {
+    if(viscosity < 0.0f || viscosity > 1.0f)
+      throw new IllegalArgumentException("Illegal argument: DampingForce(" + viscosity + ")");
+    this.viscosity = viscosity;
+  }
+
+  public void bind(KnotData kd)
+  {
+    atoms = kd.getStorage();
+    allocate(atoms.numAtoms());
+    for(int a=0; a<atoms.numAtoms(); a++)
+    {
+      px.put(a, atoms.getX(a));
+      py.put(a, atoms.getY(a));
+      pz.put(a, atoms.getZ(a));
+    }
+  }
+  private void allocate(int n)
+  {
+    px = atoms.allocateFloats(n);
+    py = atoms.allocateFloats(n);
+    pz = atoms.allocateFloats(n);
+  }
+
+  public void apply(int iteration, double[] sumSq)
+  {
+    float dx, dy, dz;
+    for(int i=0; i<atoms.numStrands(); i++)
+    {
+      for(int a=atoms.strandStart(i); a<atoms.strandStart(i+1); a++)
+      {
+        dx = (atoms.getX(a) - px.get(a)) * viscosity;
+        dy = (atoms.getY(a) - py.get(a)) * viscosity;
+        dz = (atoms.getZ(a) - pz.get(a)) * viscosity;
+        atoms.move(a, -dx, -dy, -dz);
+        px.put(a, atoms.getX(a));
+        py.put(a, atoms.getY(a));
+        pz.put(a, atoms.getZ(a));
+        sumSq[i] += dx*dx + dy*dy + dz*dz;
+      }
+    }
+  }
+
+  // The buffers aren't Serializable, so the last positions get written out one by one
+  private void writeObject(ObjectOutputStream out) throws IOException
+  {
+    out.defaultWriteObject();
+    int n = (px==null) ? -1 : px.capacity();
+    out.writeInt(n);
+    for(int a=0; a<n; a++)
+    {
+      out.writeFloat(px.get(a));
+      out.writeFloat(py.get(a));
+      out.writeFloat(pz.get(a));
+    }
+  }
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+  {
+    in.defaultReadObject();
+    int n = in.readInt();
+    if(n < 0)
+      return;
+    allocate(n); // (Not atoms.numAtoms() - the storage may not have been read in completely yet)
+    for(int a=0; a<n; a++)
+    {
+      px.put(a, in.readFloat());
+      py.put(a, in.readFloat());
+      pz.put(a, in.readFloat());
+    }
+  }
+}
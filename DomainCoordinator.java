@@ -0,0 +1,398 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.*;
+import java.io.*;
+import java.net.*;
+
+// Tightens a knot using several worker processes (DomainWorker) - for knots too big for one
+// machine's worth of threads. The knot gets cut into slabs along its longest axis, with roughly the
+// same number of atoms in each, and each worker looks after one slab, swapping the atoms near its
+// edges with its neighbours (see DomainWorker). The coordinator just starts the workers, tells them
+// when to iterate, and adds up what they report so that a ConvergenceDetector can decide when to stop.
+//
+// The workers are started on this machine, with the same classpath, and everything talks over
+// local sockets - so the processes could just as well be spread over several machines, but
+// starting them there is left to the user. Because each worker draws its own random sweeps and
+// the halo positions are an iteration old, the results aren't identical to KnotData's, though the
+// knot tightens the same way.
+public class DomainCoordinator
+{
+  // Commands to the workers
+  static final int CMD_ITERATE = 1, CMD_FINISH = 2;
+  // How often start() checks that the workers are still alive while it waits for them to call back, and how long it waits in all
+  private static final int ACCEPT_POLL_MS = 500, START_TIMEOUT_MS = 60000;
+  // What each worker reports after each iteration
+  static final int REPORT_ATOMS = 0, REPORT_LENGTH = 1, REPORT_MAX_STRETCH = 2, REPORT_MIN_DIST2 = 3, REPORT_SUM_SQ = 4, REPORT_OVERLAPS = 5, REPORT_MOVED = 6,
+                   REPORT_FORCE_SUM_SQ = 7, NUM_REPORT = 8;
+
+  private KnotData kd;
+  private int      numWorkers;
+  private int      rebuildInterval;
+  private int      iterationsSoFar = 0;
+  private int      lastRebuildAt;
+  private boolean  rebuildNext = true; // (The workers have no neighbour lists to start with)
+  private int      rebuildsDone = 0;
+  private KnotMetrics lastMetrics;
+  private ConvergenceDetector detector;
+  private boolean  converged = false;
+
+  private Process[]          processes;
+  private Socket[]           sockets;
+  private DataInputStream[]  ins;
+  private DataOutputStream[] outs;
+
+  public DomainCoordinator(KnotData kd, int numWorkers)
+  {
+    if(kd==null || numWorkers<1)
+      throw new IllegalArgumentException("Illegal argument: DomainCoordinator(" + kd + ", " + numWorkers + ")");
+    this.kd = kd;
+    this.numWorkers = numWorkers;
+    rebuildInterval = kd.getRebuildInterval();
+    detector = kd.getConvergenceDetector();
+    if(detector==null)
+      detector = new PlateauDetector(KnotMetrics.RMS_DISPLACEMENT, 50, 0.05f);
+  }
+
+  public void setRebuildInterval(int rebuildInterval)
+  {
+    if(rebuildInterval<1)
+      throw new IllegalArgumentException("Illegal argument: DomainCoordinator.setRebuildInterval(" + rebuildInterval + ")");
+    this.rebuildInterval = rebuildInterval;
+  }
+
+  // How wide the halo has to be: anything within FN's reach of a worker's atoms. (The atoms at the other
+  // end of their leashes get sent whatever the distance.)
+  public float getHaloWidth()
+  {
+    return kd.getAtomRadius() * 2 + kd.getEtaParameter();
+  }
+
+  // How far atoms can close in on each other between rebuilds without an overlap being missed: FN's reach
+  // less the distance at which RO counts an overlap (KnotData.getContactDistance()). Both the
+  // neighbour lists and the halo are built with this to spare, so the workers get rebuilt as soon as any
+  // atom has moved half of it - and at least every rebuildInterval iterations.
+  public float getSkin()
+  {
+    return Math.max(getHaloWidth() - kd.getContactDistance(), kd.getEtaParameter());
+  }
+
+  // Starts the workers and shares the atoms out between them
+  public void start() throws IOException
+  {
+    float[] coords = kd.getCoordinates(null);
+    int numAtoms = coords.length / 3;
+
+    // Cut along the longest axis
+    float[] min = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+    float[] max = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+    for(int i=0; i<numAtoms; i++)
+      for(int c=0; c<3; c++)
+      {
+        min[c] = Math.min(min[c], coords[i*3+c]);
+        max[c] = Math.max(max[c], coords[i*3+c]);
+      }
+    int axis = 0;
+    for(int c=1; c<3; c++)
+      if(max[c]-min[c] > max[axis]-min[axis])
+        axis = c;
+
+    KnotStorage atoms = kd.getStorage();
+    int[] strandStart = new int[atoms.numStrands()+1];
+    for(int s=0; s<strandStart.length; s++)
+      strandStart[s] = atoms.strandStart(s);
+
+    // Same number of atoms in each slab - but no slab can be narrower than the halo, or than the
+    // longest leash, since a worker only swaps atoms with its immediate neighbours. Use fewer
+    // workers if need be.
+    float[] along = new float[numAtoms];
+    for(int i=0; i<numAtoms; i++)
+      along[i] = coords[i*3+axis];
+    float minWidth = getHaloWidth();
+    for(int s=0; s<strandStart.length-1; s++)
+      for(int g=strandStart[s]; g+1<strandStart[s+1]; g++)
+        minWidth = Math.max(minWidth, Math.abs(along[g+1] - along[g]));
+    Arrays.sort(along);
+    float[] bounds;
+    while(true)
+    {
+      bounds = new float[numWorkers+1];
+      bounds[0] = Float.NEGATIVE_INFINITY;
+      bounds[numWorkers] = Float.POSITIVE_INFINITY;
+      boolean ok = true;
+      for(int w=1; w<numWorkers; w++)
+      {
+        bounds[w] = along[(int)((long)numAtoms * w / numWorkers)];
+        if(w>1 && bounds[w]-bounds[w-1] < minWidth)
+          ok = false;
+      }
+      if(ok || numWorkers==1)
+        break;
+      numWorkers--;
+    }
+
+    // Start the workers, and wait for them to call back
+    ServerSocket listener = new ServerSocket(0, numWorkers, InetAddress.getLoopbackAddress());
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    processes = new Process[numWorkers];
+    for(int w=0; w<numWorkers; w++)
+    {
+      ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "DomainWorker",
+                                             InetAddress.getLoopbackAddress().getHostAddress(), Integer.toString(listener.getLocalPort()));
+      pb.inheritIO();
+      processes[w] = pb.start();
+    }
+    // They may call back in any order, so go by the order they connect in - it doesn't matter which slab who gets
+    sockets = new Socket[numWorkers];
+    ins = new DataInputStream[numWorkers];
+    outs = new DataOutputStream[numWorkers];
+    int[] ports = new int[numWorkers];
+    try
+    {
+      long deadline = System.currentTimeMillis() + START_TIMEOUT_MS;
+      listener.setSoTimeout(ACCEPT_POLL_MS);
+      for(int w=0; w<numWorkers; w++)
+      {
+        sockets[w] = acceptWorker(listener, deadline);
+        sockets[w].setTcpNoDelay(true);
+        ins[w] = new DataInputStream(new BufferedInputStream(sockets[w].getInputStream(), 1 << 16));
+        outs[w] = new DataOutputStream(new BufferedOutputStream(sockets[w].getOutputStream(), 1 << 16));
+        ports[w] = ins[w].readInt();
+      }
+    }
+    catch(IOException e) // Don't leave the others running
+    {
+      for(int w=0; w<numWorkers; w++)
+        processes[w].destroy();
+      outs = null;
+      throw e;
+    }
+    finally
+    {
+      listener.close();
+    }
+
+    for(int w=0; w<numWorkers; w++)
+    {
+      DataOutputStream out = outs[w];
+      out.writeInt(w);
+      out.writeInt(numWorkers);
+      out.writeInt(axis);
+      out.writeFloat(bounds[w]);
+      out.writeFloat(bounds[w+1]);
+      out.writeFloat(getHaloWidth());
+      out.writeFloat(kd.getAtomRadius());
+      out.writeFloat(kd.getLeashLength());
+      out.writeFloat(kd.getDeltaParameter());
+      out.writeFloat(kd.getEtaParameter());
+      out.writeInt(kd.getSkippedParameter());
+      out.writeLong(kd.getRandomSeed());
+      out.writeInt(strandStart.length);
+      for(int s=0; s<strandStart.length; s++)
+        out.writeInt(strandStart[s]);
+
+      int count = 0;
+      for(int i=0; i<numAtoms; i++)
+        if(coords[i*3+axis] >= bounds[w] && coords[i*3+axis] < bounds[w+1])
+          count++;
+      out.writeInt(count);
+      for(int g=0; g<numAtoms; g++)
+        if(coords[g*3+axis] >= bounds[w] && coords[g*3+axis] < bounds[w+1])
+        {
+          out.writeInt(g);
+          out.writeFloat(atoms.getX(g));
+          out.writeFloat(atoms.getY(g));
+          out.writeFloat(atoms.getZ(g));
+          out.writeFloat(atoms.getXf(g));
+          out.writeFloat(atoms.getYf(g));
+          out.writeFloat(atoms.getZf(g));
+        }
+      out.writeInt((w+1 < numWorkers) ? ports[w+1] : -1);
+      out.flush();
+    }
+  } // End of start()
+
+  public int getNumWorkers() // May be fewer than asked for, once start() has been called
+  {
+    return numWorkers;
+  }
+
+  // One iteration on every worker. Returns the metrics, added up over the workers (as a single "strand")
+  public KnotMetrics iterate() throws IOException
+  {
+    if(outs==null)
+      throw new IllegalStateException("DomainCoordinator.iterate() called before start()");
+    boolean rebuild = rebuildNext || iterationsSoFar - lastRebuildAt >= rebuildInterval;
+    if(rebuild)
+    {
+      lastRebuildAt = iterationsSoFar;
+      rebuildsDone++;
+    }
+    for(int w=0; w<numWorkers; w++)
+    {
+      outs[w].writeInt(CMD_ITERATE);
+      outs[w].writeInt(iterationsSoFar);
+      outs[w].writeBoolean(rebuild);
+      outs[w].flush();
+    }
+    double[] total = new double[NUM_REPORT];
+    total[REPORT_MIN_DIST2] = Float.POSITIVE_INFINITY;
+    double[] report = new double[NUM_REPORT];
+    for(int w=0; w<numWorkers; w++)
+    {
+      for(int i=0; i<NUM_REPORT; i++)
+        report[i] = ins[w].readDouble();
+      total[REPORT_ATOMS] += report[REPORT_ATOMS];
+      total[REPORT_LENGTH] += report[REPORT_LENGTH];
+      total[REPORT_SUM_SQ] += report[REPORT_SUM_SQ];
+      total[REPORT_FORCE_SUM_SQ] += report[REPORT_FORCE_SUM_SQ];
+      total[REPORT_OVERLAPS] += report[REPORT_OVERLAPS];
+      total[REPORT_MAX_STRETCH] = Math.max(total[REPORT_MAX_STRETCH], report[REPORT_MAX_STRETCH]);
+      total[REPORT_MIN_DIST2] = Math.min(total[REPORT_MIN_DIST2], report[REPORT_MIN_DIST2]);
+      total[REPORT_MOVED] = Math.max(total[REPORT_MOVED], report[REPORT_MOVED]);
+    }
+    rebuildNext = (total[REPORT_MOVED] > getSkin() / 2);
+
+    KnotMetrics metrics = new KnotMetrics(iterationsSoFar++, 1, kd.getContactDistance());
+    metrics.leashesDone(0, (int)total[REPORT_ATOMS], (float)total[REPORT_LENGTH], (float)total[REPORT_MAX_STRETCH], total[REPORT_SUM_SQ]);
+    metrics.overlapsDone(0, (float)total[REPORT_MIN_DIST2], 0.0);
+    metrics.forcesDone(0, total[REPORT_FORCE_SUM_SQ]);
+    lastMetrics = metrics;
+    // Don't call it converged while any worker gave up on its overlaps
+    if(detector.hasConverged(metrics) && total[REPORT_OVERLAPS]==0)
+      converged = true;
+    return metrics;
+  }
+
+  // Iterates until the detector says so, or until maxIterations have been done. Returns how many were done
+  public int iterateUntilConverged(int maxIterations) throws IOException
+  {
+    int done = 0;
+    while(done < maxIterations && !converged)
+    {
+      iterate();
+      done++;
+    }
+    return done;
+  }
+
+  public KnotMetrics getMetrics()
+  {
+    return lastMetrics;
+  }
+  public boolean hasConverged()
+  {
+    return converged;
+  }
+  public int getIterationsSoFar()
+  {
+    return iterationsSoFar;
+  }
+  public int getRebuildsDone() // Including the ones brought forward because atoms moved too far
+  {
+    return rebuildsDone;
+  }
+
+  // Stops the workers and copies the atoms' positions back into the KnotData
+  public KnotData finish() throws IOException
+  {
+    if(outs==null)
+      throw new IllegalStateException("DomainCoordinator.finish() called before start()");
+    KnotStorage atoms = kd.getStorage();
+    for(int w=0; w<numWorkers; w++)
+    {
+      outs[w].writeInt(CMD_FINISH);
+      outs[w].flush();
+    }
+    for(int w=0; w<numWorkers; w++)
+    {
+      int count = ins[w].readInt();
+      for(int k=0; k<count; k++)
+      {
+        int g = ins[w].readInt();
+        float x = ins[w].readFloat(), y = ins[w].readFloat(), z = ins[w].readFloat();
+        atoms.setPosition(g, x, y, z);
+      }
+      sockets[w].close();
+    }
+    for(int w=0; w<numWorkers; w++)
+    {
+      try
+      {
+        processes[w].waitFor();
+      }
+      catch(InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    outs = null;
+    kd.findNeighboursFN();
+    return kd;
+  } // End of finish()
+
+  // Waits for the next worker to call back - giving up if one of them has died (e.g. the JVM couldn't start, or
+  // couldn't find DomainWorker on the classpath), or if they're taking more than START_TIMEOUT_MS between them
+  private Socket acceptWorker(ServerSocket listener, long deadline) throws IOException
+  {
+    while(true)
+    {
+      try
+      {
+        return listener.accept();
+      }
+      catch(SocketTimeoutException e)
+      {
+        for(int w=0; w<numWorkers; w++)
+          if(!processes[w].isAlive())
+            throw new IOException("DomainWorker process " + w + " exited with code " + processes[w].exitValue() + " before calling back");
+        if(System.currentTimeMillis() > deadline)
+          throw new IOException("DomainWorker processes took more than " + START_TIMEOUT_MS + "ms to call back");
+      }
+    }
+  }
+
+  public static void main(String[] args)
+  {
+    if(args.length!=4)
+    {
+      System.out.println("Usage: java DomainCoordinator infile outfile workers maxiterations");
+      System.exit(1);
+    }
+    try
+    {
+      KnotData kd = new KnotData(new FileInputStream(args[0]));
+      DomainCoordinator dc = new DomainCoordinator(kd, Integer.parseInt(args[2]));
+      long started = System.currentTimeMillis();
+      dc.start();
+      int done = dc.iterateUntilConverged(Integer.parseInt(args[3]));
+      dc.finish();
+      System.out.println("Ran " + done + " iterations on " + dc.getNumWorkers() + " workers in " + (System.currentTimeMillis() - started) + " ms"
+                         + (dc.hasConverged() ? " (converged)" : ""));
+      System.out.println(dc.getMetrics());
+      FileWriter fw = new FileWriter(args[1]);
+      fw.write(kd.toString());
+      fw.close();
+    }
+    catch(IOException e)
+    {
+      System.out.println("IOException in DomainCoordinator: " + e);
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.*;
+
+// Checks a distributed run (DomainCoordinator, with its workers started as separate processes
+// from this classpath) against a plain KnotData run of the same knot. They can't come out
+// identical - each worker draws its own random sweeps - so this checks that the knot is still
+// the same knot (see KnotTopology), that its rope length (measured from the final positions,
+// leash by leash) and its spread (the RMS distance of the atoms from their centre) both end up
+// within tolerance of KnotData's, and that no two atoms (further apart along the strand than
+// skippedParameter) end up overlapping. Only the first stretch of iterations gets checked, as in
+// MultiresTester.
+public class DomainTester
+{
+  private static String[] filePaths = {"Reef.knot", "Granny.knot"};
+  private static int workers = 2;
+  private static int iterations = 100;
+  private static int seeds = 3;
+  private static float tolerance = 0.01f;
+
+  public static void main(String[] args)
+  {
+    if(args.length>0)
+      filePaths = args;
+
+    int failures = 0;
+    try
+    {
+      for(int f=0; f<filePaths.length; f++)
+        for(long seed=1; seed<=seeds; seed++)
+        {
+          KnotData single = new KnotData(new FileInputStream(filePaths[f]));
+          single.setRandomSeed(seed);
+          KnotTopology topology = new KnotTopology(single);
+          long before = topology.determinant(single);
+          for(int i=0; i<iterations; i++)
+            single.iterate();
+          double singleLength = ropeLength(single), singleSpread = spread(single);
+
+          KnotData kd = new KnotData(new FileInputStream(filePaths[f]));
+          kd.setRandomSeed(seed);
+          DomainCoordinator dc = new DomainCoordinator(kd, workers);
+          dc.start();
+          for(int i=0; i<iterations; i++)
+            dc.iterate();
+          dc.finish();
+          long after = topology.determinant(kd);
+          double length = ropeLength(kd), spread = spread(kd);
+          float closest = closestApproach(kd);
+
+          boolean ok = (after == before && dc.getNumWorkers() == workers
+                        && Math.abs(length - singleLength) <= tolerance * singleLength
+                        && Math.abs(spread - singleSpread) <= tolerance * singleSpread
+                        && closest >= kd.getContactDistance() * 0.9f);
+          if(!ok)
+            failures++;
+          System.out.println((ok ? "OK     " : "FAILED ") + filePaths[f] + " seed " + seed + ": determinant " + before + ", after "
+                             + iterations + " iterations on " + dc.getNumWorkers() + " workers " + after + ", rope length " + (float)length
+                             + " (KnotData " + (float)singleLength + "), spread " + (float)spread + " (KnotData " + (float)singleSpread
+                             + "), closest approach " + closest + ", rebuilds " + dc.getRebuildsDone());
+        }
+    }
+    catch(IOException e)
+    {
+      System.out.println("IOException in DomainTester: " + e);
+      System.exit(1);
+    }
+    if(failures > 0)
+    {
+      System.out.println(failures + " failed");
+      System.exit(1);
+    }
+  }
+
+  // The leashes' lengths, added up
+  private static double ropeLength(KnotData kd)
+  {
+    KnotStorage atoms = kd.getStorage();
+    double ret = 0.0;
+    for(int s=0; s<atoms.numStrands(); s++)
+      for(int a=atoms.strandStart(s); a<atoms.strandStart(s+1)-1; a++)
+      {
+        float dx = atoms.getX(a+1) - atoms.getX(a), dy = atoms.getY(a+1) - atoms.getY(a), dz = atoms.getZ(a+1) - atoms.getZ(a);
+        ret += Math.sqrt(dx*dx + dy*dy + dz*dz);
+      }
+    return ret;
+  }
+
+  // The RMS distance of the atoms from their centre
+  private static double spread(KnotData kd)
+  {
+    KnotStorage atoms = kd.getStorage();
+    int n = atoms.numAtoms();
+    double cx = 0.0, cy = 0.0, cz = 0.0, sumSq = 0.0;
+    for(int a=0; a<n; a++)
+    {
+      cx += atoms.getX(a) / n;
+      cy += atoms.getY(a) / n;
+      cz += atoms.getZ(a) / n;
+    }
+    for(int a=0; a<n; a++)
+    {
+      double dx = atoms.getX(a) - cx, dy = atoms.getY(a) - cy, dz = atoms.getZ(a) - cz;
+      sumSq += dx*dx + dy*dy + dz*dz;
+    }
+    return Math.sqrt(sumSq / n);
+  }
+
+  // The smallest distance between two atoms which RO keeps apart (at least kd.getContactDistance(), once it's done)
+  private static float closestApproach(KnotData kd)
+  {
+    KnotStorage atoms = kd.getStorage();
+    int skipped = kd.getSkippedParameter();
+    float ret = Float.POSITIVE_INFINITY;
+    for(int sa=0; sa<atoms.numStrands(); sa++)
+      for(int a=atoms.strandStart(sa); a<atoms.strandStart(sa+1); a++)
+        for(int b=a+1; b<atoms.numAtoms(); b++)
+        {
+          if(b-a<skipped && b<atoms.strandStart(sa+1))
+            continue;
+          float dx = atoms.getX(a) - atoms.getX(b), dy = atoms.getY(a) - atoms.getY(b), dz = atoms.getZ(a) - atoms.getZ(b);
+          ret = Math.min(ret, (float)Math.sqrt(dx*dx + dy*dy + dz*dz));
+        }
+    return ret;
+  }
+}
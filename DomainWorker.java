@@ -0,0 +1,627 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+
+// One worker process of a distributed run (see DomainCoordinator, which starts these). The knot's
+// bounding box is cut into slabs along one axis, and this worker owns the atoms in one slab. It also
+// keeps "ghost" copies of the atoms in the neighbouring slabs that are near enough to matter - the
+// halo - which the neighbouring workers send over at the start of every iteration.
+//
+// FN, RO and CL are KnotData's own (see KnotData.buildNeighbourTable(), removeOverlaps() and
+// pullLeash()), run on the worker's atoms through a KnotStorage, except that a correction between an
+// owned atom and a ghost only moves the owned atom (by its half) - the worker owning the ghost sees
+// the same pair from the other side and moves its own half. When the coordinator says so, atoms which
+// have wandered out of the slab migrate to the neighbouring worker, the halo gets worked out afresh and
+// the neighbour lists get rebuilt; in between, only the positions of the halo atoms get sent.
+//
+// The halo is FN's reach (so it includes the same skin the neighbour lists have), plus every atom
+// whose neighbour along the strand lives in another slab, so that both ends of every leash are always
+// here. The coordinator rebuilds early if any atom moves far enough for that skin not to cover it.
+//
+// Atoms are known by their global number: the atoms are numbered consecutively through the strands,
+// so atom g's neighbours along the strand are g-1 and g+1 (if they're in the same strand).
+public class DomainWorker
+{
+  private static final int MAX_RO_PASSES = 1000; // Ghosts don't move during the RO passes, so make sure we can't go round forever
+
+  private int   id, numWorkers, axis;
+  private float lower, upper, haloWidth;
+  private float atomRadius, leashLength, deltaParameter, etaParameter;
+  private int   skippedParameter;
+  private long  randomSeed;
+  private int[] strandStart;
+
+  // Owned atoms are slots [0, numOwned), ghosts are [numOwned, numLocal)
+  private int     numOwned, numLocal;
+  private int[]   gid = new int[0];
+  private float[] x = new float[0], y = new float[0], z = new float[0], xf = new float[0], yf = new float[0], zf = new float[0];
+  private float[] x0 = new float[0], y0 = new float[0], z0 = new float[0]; // Where the owned atoms were at the last rebuild
+  private IntIntMap slotOf = new IntIntMap(16); // Global atom number -> slot
+
+  private KnotStorage slots = new Slots();
+  private KnotData.NeighbourTable nn;         // Neighbour lists (as slots) of the owned atoms
+  private KnotData.FnScratch scratch = new KnotData.FnScratch();
+  private FloatBuffer coords;                 // The positions FN works from
+
+  private DataInputStream  coordIn;
+  private DataOutputStream coordOut;
+  private Link left, right; // Links to the workers with the neighbouring slabs (null at the ends)
+
+  // The connection to a neighbouring worker, and what we exchange with it
+  private static class Link
+  {
+    DataInputStream  in;
+    DataOutputStream out;
+    boolean talkFirst;       // The lower-numbered worker of the pair sends first, the other receives first
+    int[]   sendSlots = new int[0]; // Owned atoms in the halo we send them
+    int     numSend;
+    int     ghostStart, numGhosts; // Where their halo atoms sit in our slots
+    float[] migrants = new float[0]; // Atoms leaving for their slab: gid (as a float's bits), then x, y, z, xf, yf, zf
+    int     numMigrants;
+    Link(Socket socket, boolean talkFirst) throws IOException
+    {
+      socket.setTcpNoDelay(true);
+      in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+      out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+      this.talkFirst = talkFirst;
+    }
+  }
+
+  private static final int MIGRATE = 0, HALO = 1, HALO_POSITIONS = 2;
+
+  public static void main(String[] args)
+  {
+    if(args.length!=2)
+    {
+      System.err.println("Usage: java DomainWorker coordinatorhost coordinatorport (normally started by DomainCoordinator)");
+      System.exit(1);
+    }
+    try
+    {
+      new DomainWorker().run(args[0], Integer.parseInt(args[1]));
+    }
+    catch(IOException e)
+    {
+      System.err.println("IOException in DomainWorker: " + e);
+      System.exit(1);
+    }
+  }
+
+  private void run(String host, int port) throws IOException
+  {
+    Socket coordSocket = new Socket(host, port);
+    coordSocket.setTcpNoDelay(true);
+    coordIn = new DataInputStream(new BufferedInputStream(coordSocket.getInputStream(), 1 << 16));
+    coordOut = new DataOutputStream(new BufferedOutputStream(coordSocket.getOutputStream(), 1 << 16));
+
+    // Our left-hand neighbour will connect to us here
+    ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    coordOut.writeInt(listener.getLocalPort());
+    coordOut.flush();
+
+    readSetup();
+
+    // Connect to the right, accept from the left
+    int rightPort = coordIn.readInt();
+    if(rightPort > 0)
+      right = new Link(new Socket(InetAddress.getLoopbackAddress(), rightPort), true);
+    if(id > 0)
+      left = new Link(listener.accept(), false);
+    listener.close();
+
+    int iteration;
+    while(true)
+    {
+      int command = coordIn.readInt();
+      if(command==DomainCoordinator.CMD_FINISH)
+        break;
+      iteration = coordIn.readInt();
+      iterate(iteration, coordIn.readBoolean());
+    }
+
+    // Hand our atoms back
+    coordOut.writeInt(numOwned);
+    for(int s=0; s<numOwned; s++)
+    {
+      coordOut.writeInt(gid[s]);
+      coordOut.writeFloat(x[s]);
+      coordOut.writeFloat(y[s]);
+      coordOut.writeFloat(z[s]);
+    }
+    coordOut.flush();
+    coordSocket.close();
+  } // End of run()
+
+  private void readSetup() throws IOException
+  {
+    id = coordIn.readInt();
+    numWorkers = coordIn.readInt();
+    axis = coordIn.readInt();
+    lower = coordIn.readFloat();
+    upper = coordIn.readFloat();
+    haloWidth = coordIn.readFloat();
+    atomRadius = coordIn.readFloat();
+    leashLength = coordIn.readFloat();
+    deltaParameter = coordIn.readFloat();
+    etaParameter = coordIn.readFloat();
+    skippedParameter = coordIn.readInt();
+    randomSeed = coordIn.readLong();
+    strandStart = new int[coordIn.readInt()];
+    for(int i=0; i<strandStart.length; i++)
+      strandStart[i] = coordIn.readInt();
+    numOwned = numLocal = coordIn.readInt();
+    ensureCapacity(numOwned);
+    for(int s=0; s<numOwned; s++)
+    {
+      gid[s] = coordIn.readInt();
+      x[s] = coordIn.readFloat();
+      y[s] = coordIn.readFloat();
+      z[s] = coordIn.readFloat();
+      xf[s] = coordIn.readFloat();
+      yf[s] = coordIn.readFloat();
+      zf[s] = coordIn.readFloat();
+    }
+  }
+
+  private void ensureCapacity(int n)
+  {
+    if(gid.length >= n)
+      return;
+    n = Math.max(n, gid.length * 2);
+    gid = Arrays.copyOf(gid, n);
+    x = Arrays.copyOf(x, n);
+    y = Arrays.copyOf(y, n);
+    z = Arrays.copyOf(z, n);
+    xf = Arrays.copyOf(xf, n);
+    yf = Arrays.copyOf(yf, n);
+    zf = Arrays.copyOf(zf, n);
+    x0 = Arrays.copyOf(x0, n);
+    y0 = Arrays.copyOf(y0, n);
+    z0 = Arrays.copyOf(z0, n);
+  }
+
+  private float coord(int s) // The position along the axis the slabs are cut along
+  {
+    return (axis==0) ? x[s] : ((axis==1) ? y[s] : z[s]);
+  }
+
+  private void iterate(int iteration, boolean rebuild) throws IOException
+  {
+    if(rebuild)
+    {
+      numLocal = numOwned; // Forget the old ghosts
+      findMigrants();
+      exchange(MIGRATE);
+      slotOf = new IntIntMap(numOwned);
+      for(int s=0; s<numOwned; s++)
+      {
+        slotOf.put(gid[s], s);
+        x0[s] = x[s];
+        y0[s] = y[s];
+        z0[s] = z[s];
+      }
+      findHalo();
+      exchange(HALO);
+      slotOf = new IntIntMap(numLocal);
+      for(int s=0; s<numLocal; s++)
+        slotOf.put(gid[s], s);
+      checkLeashes();
+      findNeighboursFN();
+    }
+    else
+      exchange(HALO_POSITIONS);
+
+    SplittableRandom random = new SplittableRandom(KnotData.iterationSeed(randomSeed ^ id, iteration));
+    double[] report = new double[DomainCoordinator.NUM_REPORT]; // Sums etc which go back to the coordinator
+    double[] stats = new double[2];
+    int passes = 0;
+    boolean overlaps;
+    do
+    {
+      stats[KnotData.RO_MIN_D2] = Float.POSITIVE_INFINITY; // Only the last pass counts, as in KnotData
+      overlaps = KnotData.removeOverlaps(slots, nn, 0, numOwned, random.nextInt(Math.max(numOwned, 1)), random.nextBoolean(),
+                                         atomRadius, deltaParameter, numOwned, stats);
+      passes++;
+    }
+    while(overlaps && passes < MAX_RO_PASSES);
+    report[DomainCoordinator.REPORT_MIN_DIST2] = stats[KnotData.RO_MIN_D2];
+    report[DomainCoordinator.REPORT_SUM_SQ] = stats[KnotData.RO_SUM_SQ];
+    controlLeashesCL(random.nextInt(Math.max(numOwned, 1)), random.nextBoolean(), report);
+    report[DomainCoordinator.REPORT_LENGTH] = ropeLength();
+    applyForces(report);
+
+    report[DomainCoordinator.REPORT_ATOMS] = numOwned;
+    report[DomainCoordinator.REPORT_OVERLAPS] = overlaps ? 1 : 0;
+    report[DomainCoordinator.REPORT_MOVED] = furthestMoved();
+    for(int i=0; i<report.length; i++)
+      coordOut.writeDouble(report[i]);
+    coordOut.flush();
+  } // End of iterate()
+
+  // Pairs of workers (0,1), (2,3)... talk first, then (1,2), (3,4)... Within a pair one sends while
+  // the other receives, then they swap over, so nobody ever waits on someone who is also sending.
+  private void exchange(int which) throws IOException
+  {
+    Link first = (id % 2 == 0) ? right : left;
+    Link second = (id % 2 == 0) ? left : right;
+    if(first!=null)
+      talk(first, which);
+    if(second!=null)
+      talk(second, which);
+  }
+  private void talk(Link link, int which) throws IOException
+  {
+    if(link.talkFirst)
+    {
+      send(link, which);
+      receive(link, which);
+    }
+    else
+    {
+      receive(link, which);
+      send(link, which);
+    }
+  }
+
+  private void send(Link link, int which) throws IOException
+  {
+    DataOutputStream out = link.out;
+    switch(which)
+    {
+      case MIGRATE:
+        out.writeInt(link.numMigrants);
+        for(int k=0; k<link.numMigrants*7; k++)
+          out.writeFloat(link.migrants[k]);
+        break;
+      case HALO:
+        out.writeInt(link.numSend);
+        for(int k=0; k<link.numSend; k++)
+          out.writeInt(gid[link.sendSlots[k]]);
+        sendPositions(link);
+        break;
+      case HALO_POSITIONS:
+        sendPositions(link);
+        break;
+    }
+    out.flush();
+  }
+  private void sendPositions(Link link) throws IOException
+  {
+    for(int k=0; k<link.numSend; k++)
+    {
+      link.out.writeFloat(x[link.sendSlots[k]]);
+      link.out.writeFloat(y[link.sendSlots[k]]);
+      link.out.writeFloat(z[link.sendSlots[k]]);
+    }
+  }
+
+  private void receive(Link link, int which) throws IOException
+  {
+    DataInputStream in = link.in;
+    int n, s;
+    switch(which)
+    {
+      case MIGRATE: // Newcomers join the owned atoms (there are no ghosts at this point)
+        n = in.readInt();
+        ensureCapacity(numOwned + n);
+        for(int k=0; k<n; k++)
+        {
+          s = numOwned++;
+          gid[s] = Float.floatToRawIntBits(in.readFloat());
+          x[s] = in.readFloat();
+          y[s] = in.readFloat();
+          z[s] = in.readFloat();
+          xf[s] = in.readFloat();
+          yf[s] = in.readFloat();
+          zf[s] = in.readFloat();
+        }
+        numLocal = numOwned;
+        break;
+      case HALO:
+        n = in.readInt();
+        ensureCapacity(numLocal + n);
+        link.ghostStart = numLocal;
+        link.numGhosts = n;
+        for(int k=0; k<n; k++)
+        {
+          gid[numLocal+k] = in.readInt();
+          xf[numLocal+k] = yf[numLocal+k] = zf[numLocal+k] = 0.0f; // Ghosts' forces get applied by their owner
+        }
+        numLocal += n;
+        receivePositions(link);
+        break;
+      case HALO_POSITIONS:
+        receivePositions(link);
+        break;
+    }
+  }
+  private void receivePositions(Link link) throws IOException
+  {
+    for(int s=link.ghostStart; s<link.ghostStart+link.numGhosts; s++)
+    {
+      x[s] = link.in.readFloat();
+      y[s] = link.in.readFloat();
+      z[s] = link.in.readFloat();
+    }
+  }
+
+  // Takes the atoms which have left our slab out of the owned atoms, ready to go to the neighbours
+  private void findMigrants()
+  {
+    if(left!=null)
+      left.numMigrants = 0;
+    if(right!=null)
+      right.numMigrants = 0;
+    int kept = 0;
+    Link dest;
+    for(int s=0; s<numOwned; s++)
+    {
+      float c = coord(s);
+      dest = (c < lower) ? left : ((c >= upper) ? right : null);
+      if(dest==null) // Staying here (the end slabs go on for ever, so they keep everything beyond them)
+      {
+        if(kept!=s)
+          moveSlot(s, kept);
+        kept++;
+        continue;
+      }
+      if(dest.migrants.length < (dest.numMigrants+1)*7)
+        dest.migrants = Arrays.copyOf(dest.migrants, Math.max(64, dest.migrants.length*2));
+      int k = dest.numMigrants*7;
+      dest.migrants[k]   = Float.intBitsToFloat(gid[s]);
+      dest.migrants[k+1] = x[s];
+      dest.migrants[k+2] = y[s];
+      dest.migrants[k+3] = z[s];
+      dest.migrants[k+4] = xf[s];
+      dest.migrants[k+5] = yf[s];
+      dest.migrants[k+6] = zf[s];
+      dest.numMigrants++;
+    }
+    numOwned = numLocal = kept;
+  }
+  private void moveSlot(int from, int to)
+  {
+    gid[to] = gid[from];
+    x[to] = x[from];
+    y[to] = y[from];
+    z[to] = z[from];
+    xf[to] = xf[from];
+    yf[to] = yf[from];
+    zf[to] = zf[from];
+  }
+
+  // Works out which of our atoms go in each neighbour's halo: the ones near enough to its slab, and the
+  // ones whose neighbour along the strand isn't ours (which could be in either slab, so both get them)
+  private void findHalo()
+  {
+    if(left!=null)
+      left.numSend = 0;
+    if(right!=null)
+      right.numSend = 0;
+    for(int s=0; s<numOwned; s++)
+    {
+      float c = coord(s);
+      boolean leashOut = leashesOut(gid[s]);
+      if(left!=null && (c < lower + haloWidth || leashOut))
+        addToHalo(left, s);
+      if(right!=null && (c >= upper - haloWidth || leashOut))
+        addToHalo(right, s);
+    }
+  }
+  private boolean leashesOut(int g) // Whether either of atom g's neighbours along the strand is owned by another worker
+  {
+    int str = KnotData.strandOf(strandStart, g);
+    return (g+1 < strandStart[str+1] && slotOf.get(g+1) < 0) || (g > strandStart[str] && slotOf.get(g-1) < 0);
+  }
+  private static void addToHalo(Link link, int s)
+  {
+    if(link.numSend==link.sendSlots.length)
+      link.sendSlots = Arrays.copyOf(link.sendSlots, Math.max(64, link.sendSlots.length*2));
+    link.sendSlots[link.numSend++] = s;
+  }
+
+  // Both ends of every one of our atoms' leashes have to be here. If one isn't, its atom is more than a
+  // whole slab away - the leash is stretched further than the slabs are wide, and we can't follow it.
+  private void checkLeashes() throws IOException
+  {
+    for(int s=0; s<numOwned; s++)
+    {
+      int g = gid[s], str = KnotData.strandOf(strandStart, g);
+      if(g+1 < strandStart[str+1] && slotOf.get(g+1) < 0)
+        throw new IOException("DomainWorker " + id + ": atom " + (g+1) + ", leashed to atom " + g + ", isn't in this slab or the ones next to it");
+      if(g > strandStart[str] && slotOf.get(g-1) < 0)
+        throw new IOException("DomainWorker " + id + ": atom " + (g-1) + ", leashed to atom " + g + ", isn't in this slab or the ones next to it");
+    }
+  }
+
+  // KnotData's FN, over owned and ghost atoms, but only listing neighbours for the owned ones
+  private void findNeighboursFN()
+  {
+    if(coords==null || coords.capacity()!=numLocal*3)
+      coords = FloatBuffer.allocate(numLocal*3);
+    for(int s=0; s<numLocal; s++)
+    {
+      coords.put(s*3,   x[s]);
+      coords.put(s*3+1, y[s]);
+      coords.put(s*3+2, z[s]);
+    }
+    nn = KnotData.buildNeighbourTable(slots, strandStart, coords, numOwned, gid, atomRadius, etaParameter, skippedParameter, scratch);
+  }
+
+  // How far the owned atom that's moved furthest since the last rebuild has gone
+  private double furthestMoved()
+  {
+    float dx, dy, dz, d2 = 0.0f;
+    for(int s=0; s<numOwned; s++)
+    {
+      dx = x[s] - x0[s];
+      dy = y[s] - y0[s];
+      dz = z[s] - z0[s];
+      d2 = Math.max(d2, dx*dx + dy*dy + dz*dz);
+    }
+    return Math.sqrt(d2);
+  }
+
+  private void controlLeashesCL(int startAt, boolean goUpwards, double[] report) throws IOException
+  {
+    int a = startAt, g;
+    for(int j=0; j<numOwned; j++)
+    {
+      g = gid[a];
+      int str = KnotData.strandOf(strandStart, g);
+      if(g+1 < strandStart[str+1]) // The leash to the next atom along - ours to measure
+        leash(a, partner(g+1), report, true);
+      if(g > strandStart[str]) // The leash to the previous atom, if that's a ghost (otherwise it's dealt with from the other end)
+      {
+        int prev = partner(g-1);
+        if(prev >= numOwned)
+          leash(prev, a, report, false);
+      }
+      if(goUpwards) a++; else a--;
+      if(a == -1)
+        a = numOwned-1;
+      else if(a>=numOwned)
+        a = 0;
+    }
+  }
+  // The length of the leashes we measure (from each of our atoms to the next one along), now that CL is done - as
+  // KnotData measures it. Where the next atom is a ghost its position is the one it had before this iteration.
+  private double ropeLength() throws IOException
+  {
+    double ret = 0.0;
+    for(int a=0; a<numOwned; a++)
+      if(gid[a]+1 < strandStart[KnotData.strandOf(strandStart, gid[a])+1])
+        ret += KnotData.distance(slots, a, partner(gid[a]+1));
+    return ret;
+  }
+  private int partner(int g) throws IOException // The slot of an atom at the other end of a leash (checkLeashes() has made sure it's here)
+  {
+    int ret = slotOf.get(g);
+    if(ret < 0)
+      throw new IOException("DomainWorker " + id + ": atom " + g + " is at the end of a leash but isn't here");
+    return ret;
+  }
+  private void leash(int a, int b, double[] report, boolean measure)
+  {
+    float d = KnotData.pullLeash(slots, a, b, leashLength, a < numOwned, b < numOwned);
+    if(measure)
+      report[DomainCoordinator.REPORT_MAX_STRETCH] = Math.max(report[DomainCoordinator.REPORT_MAX_STRETCH], d / leashLength);
+    if(d > leashLength && d!=0.0f)
+    {
+      float ddOver2 = (leashLength - d)/2;
+      if(a < numOwned)
+        report[DomainCoordinator.REPORT_SUM_SQ] += ddOver2 * ddOver2;
+      if(b < numOwned)
+        report[DomainCoordinator.REPORT_SUM_SQ] += ddOver2 * ddOver2;
+    }
+  }
+
+  private void applyForces(double[] report)
+  {
+    for(int s=0; s<numOwned; s++)
+      if(xf[s]!=0.0f || yf[s]!=0.0f || zf[s]!=0.0f)
+      {
+        x[s] += xf[s];
+        y[s] += yf[s];
+        z[s] += zf[s];
+        report[DomainCoordinator.REPORT_FORCE_SUM_SQ] += xf[s]*xf[s] + yf[s]*yf[s] + zf[s]*zf[s];
+      }
+  }
+
+  // Our atoms, owned then ghosts, as KnotData's FN, RO and CL see them: all in one strand, since they
+  // get told separately which atoms are ours and what their numbers are in the whole knot
+  private class Slots implements KnotStorage
+  {
+    public int numStrands() { return 1; }
+    public int strandStart(int strandNum) { return (strandNum==0) ? 0 : numLocal; }
+    public int numAtoms() { return numLocal; }
+
+    public float getX(int atomNum) { return x[atomNum]; }
+    public float getY(int atomNum) { return y[atomNum]; }
+    public float getZ(int atomNum) { return z[atomNum]; }
+    public void setPosition(int atomNum, float newX, float newY, float newZ)
+    {
+      x[atomNum] = newX;
+      y[atomNum] = newY;
+      z[atomNum] = newZ;
+    }
+    public void move(int atomNum, float dx, float dy, float dz)
+    {
+      x[atomNum] += dx;
+      y[atomNum] += dy;
+      z[atomNum] += dz;
+    }
+    public float getXf(int atomNum) { return xf[atomNum]; }
+    public float getYf(int atomNum) { return yf[atomNum]; }
+    public float getZf(int atomNum) { return zf[atomNum]; }
+    public void setForce(int atomNum, float newXf, float newYf, float newZf)
+    {
+      xf[atomNum] = newXf;
+      yf[atomNum] = newYf;
+      zf[atomNum] = newZf;
+    }
+
+    public IntBuffer allocateInts(int n) { return IntBuffer.allocate(n); }
+    public LongBuffer allocateLongs(int n) { return LongBuffer.allocate(n); }
+    public FloatBuffer allocateFloats(int n) { return FloatBuffer.allocate(n); }
+  }
+
+  // A minimal int->int hash map (open addressing), since the global atom numbers get looked up a lot
+  private static class IntIntMap
+  {
+    private int[] keys, values;
+    private int mask;
+    IntIntMap(int expected)
+    {
+      int size = 16;
+      while(size < expected*2)
+        size <<= 1;
+      keys = new int[size];
+      values = new int[size];
+      Arrays.fill(keys, -1);
+      mask = size - 1;
+    }
+    void put(int key, int value)
+    {
+      int h = mix(key) & mask;
+      while(keys[h]!=-1 && keys[h]!=key)
+        h = (h+1) & mask;
+      keys[h] = key;
+      values[h] = value;
+    }
+    int get(int key) // -1 if missing
+    {
+      int h = mix(key) & mask;
+      while(keys[h]!=-1)
+      {
+        if(keys[h]==key)
+          return values[h];
+        h = (h+1) & mask;
+      }
+      return -1;
+    }
+    private static int mix(int k)
+    {
+      k *= 0x9E3779B9;
+      return k ^ (k >>> 16);
+    }
+  }
+}
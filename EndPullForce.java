@@ -0,0 +1,95 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+// Pulls the two ends of every strand outwards, along the direction the strand is heading at each end -
+// like someone holding the rope ends and pulling. The strength can be ramped up (or down) linearly
+// over a number of iterations, so the pull starts gently and the knot has time to settle.
+public class EndPullForce implements ForceTerm
+{
+  private static final long serialVersionUID = 1L;
+  private float startStrength, endStrength;
+  private int   rampIterations, startIteration = -1;
+
+  private KnotStorage atoms;
+  private int[] ends, inner; // Each end atom's number, and its neighbour's along the strand (which gives the direction)
+  private int[] strandOf;
+
+  public EndPullForce(float strength)
+  {
+    this(strength, strength, 0);
+  }
+  public EndPullForce(float startStrength, float endStrength, int rampIterations)
+  {
+    this.startStrength = startStrength;
+    this.endStrength = endStrength;
+    this.rampIterations = Math.max(rampIterations, 0);
+  }
+
+  public void bind(KnotData kd)
+  {
+    atoms = kd.getStorage();
+    int count = 0;
+    for(int i=0; i<kd.numStrands(); i++)
+      if(kd.strandLength(i) >= 2)
+        count += 2;
+    ends = new int[count];
+    inner = new int[count];
+    strandOf = new int[count];
+    count = 0;
+    int first, last;
+    for(int i=0; i<kd.numStrands(); i++)
+    {
+      if(kd.strandLength(i) < 2)
+        continue;
+      first = atoms.strandStart(i);
+      last = atoms.strandStart(i+1) - 1;
+      ends[count] = first;
+      inner[count] = first + 1;
+      strandOf[count++] = i;
+      ends[count] = last;
+      inner[count] = last - 1;
+      strandOf[count++] = i;
+    }
+  }
+
+  private float strengthAt(int iteration)
+  {
+    if(startIteration < 0) // The ramp starts from the first iteration we get applied in
+      startIteration = iteration;
+    if(rampIterations==0 || iteration - startIteration >= rampIterations)
+      return endStrength;
+    return startStrength + (endStrength - startStrength) * (iteration - startIteration) / rampIterations;
+  }
+
+  public void apply(int iteration, double[] sumSq)
+  {
+    float strength = strengthAt(iteration);
+    float dx, dy, dz, d, scale;
+    for(int k=0; k<ends.length; k++)
+    {
+      dx = atoms.getX(ends[k]) - atoms.getX(inner[k]);
+      dy = atoms.getY(ends[k]) - atoms.getY(inner[k]);
+      dz = atoms.getZ(ends[k]) - atoms.getZ(inner[k]);
+      d = (float)Math.sqrt(dx*dx + dy*dy + dz*dz);
+      if(d==0.0f)
+        continue;
+      scale = strength / d;
+      atoms.move(ends[k], dx * scale, dy * scale, dz * scale);
+      sumSq[strandOf[k]] += strength * strength;
+    }
+  }
+}
@@ -0,0 +1,29 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.*;
+
+// One of the forces acting on the knot during applyForces(). KnotData keeps a list of these and
+// applies them in order once per iteration. A term works out which atoms it acts on in bind() and
+// keeps them in packed arrays, so that apply() only has to visit those atoms.
+public interface ForceTerm extends Serializable
+{
+  // Called when the term is added, and again whenever the knot's atoms get replaced (interpolate(), rethread() etc)
+  public void bind(KnotData kd);
+  // Moves the atoms, adding the squared length of each atom's move to sumSq[its strand number]
+  public void apply(int iteration, double[] sumSq);
+}
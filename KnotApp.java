@@ -21,6 +21,8 @@ import javax.swing.*;
 import javax.swing.event.*;
 import javax.swing.border.*;
 import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 public class KnotApp extends JFrame implements Runnable
 {
@@ -28,13 +30,22 @@ public class KnotApp extends JFrame implements Runnable
   private KnotDataViewer knotViewer;
   private int            knotViewerHeight, knotViewerWidth;
   private static KnotApp theApp;
-  private boolean        running;
+  private volatile boolean running;
   private File           defaultLoadDirectory = new File("~/javastuff/uk/co/mcld/");
   private File           defaultSaveDirectory = new File("~/javastuff/uk/co/mcld/");
-  private Thread         calcThread;
+  // All the calculation happens on this one thread, in order, so nothing touches kd from two threads at once.
+  // The UI only ever sees the snapshots handed over through latestFrame, which viewTimer picks up.
+  private ExecutorService simExecutor;
+  private final AtomicReference<KnotFrame> latestFrame = new AtomicReference<KnotFrame>(); // The newest KnotFrame the viewer hasn't shown yet
+  private javax.swing.Timer viewTimer;
+  private int            framesPerSecond = 25;
+  private volatile int   stepsPerFrame = 1; // Iterations between snapshots (more if the viewer can't keep up)
+  private MultiresTightener tightener; // Non-null while an automatic coarse-to-fine run is in progress
+  private int            multiresLevels = 2;
 
     // UI objects
-    private JButton interpolateButton, rethreadButton, loadKnotButton, saveKnotButton, goButton, goOnceButton;
+    private JButton interpolateButton, rethreadButton, loadKnotButton, saveKnotButton, goButton, goOnceButton, autoTightenButton;
+    private JSpinner stepsPerFrameSpinner;
     private JScrollPane algoProgScrollPane;
     private JTextPane   algoProgTextPane;
     // End of UI objects
@@ -53,6 +64,13 @@ public class KnotApp extends JFrame implements Runnable
     knotViewerWidth = 500;
     
     kd = initialkd = new KnotData();
+    simExecutor = Executors.newSingleThreadExecutor(new ThreadFactory(){
+                                  public Thread newThread(Runnable r)
+                                  {
+                                    Thread t = new Thread(r, "Knot calculation");
+                                    t.setDaemon(true);
+                                    return t;
+                                  }});
     
     // Set up UI objects
     knotViewer = new KnotDataViewer(knotViewerWidth, knotViewerHeight, kd);
@@ -63,15 +81,23 @@ public class KnotApp extends JFrame implements Runnable
     interpolateButton.addActionListener(new ActionListener(){
                                   public void actionPerformed(ActionEvent e)
                                   {
-                                    kd.interpolate();
-                                    knotViewer.update(kd);
+                                    simExecutor.execute(new Runnable(){
+                                      public void run()
+                                      {
+                                        kd.interpolate();
+                                        publishFrame();
+                                      }});
                                   }});
     rethreadButton = new JButton("Rethread");
     rethreadButton.addActionListener(new ActionListener(){
                                   public void actionPerformed(ActionEvent e)
                                   {
-                                    kd.rethread();
-                                    knotViewer.update(kd);
+                                    simExecutor.execute(new Runnable(){
+                                      public void run()
+                                      {
+                                        kd.rethread();
+                                        publishFrame();
+                                      }});
                                   }});
     loadKnotButton = new JButton("Load knot");
     loadKnotButton.addActionListener(new ActionListener(){
@@ -112,8 +138,7 @@ public class KnotApp extends JFrame implements Runnable
                                     {
                                       running = true;
                                       goButton.setText("Stop");
-                                      calcThread = new Thread(theApp);
-                                      calcThread.start();
+                                      simExecutor.execute(theApp);
                                     }
                                     else
                                     {
@@ -125,10 +150,44 @@ public class KnotApp extends JFrame implements Runnable
     goOnceButton.addActionListener(new ActionListener(){
                                   public void actionPerformed(ActionEvent e)
                                   {
-                                      running = false;
-                                      calcThread = new Thread(theApp);
-                                      calcThread.start();
+                                    if(running) return; // It's already going - "Stop" first
+                                    simExecutor.execute(new Runnable(){
+                                      public void run()
+                                      {
+                                        step();
+                                        publishFrame();
+                                        showProgress();
+                                      }});
+                                  }});
+    autoTightenButton = new JButton("Auto-tighten");
+    autoTightenButton.addActionListener(new ActionListener(){
+                                  public void actionPerformed(ActionEvent e)
+                                  {
+                                    if(running) return; // Don't start a second run
+                                    running = true;
+                                    goButton.setText("Stop");
+                                    simExecutor.execute(new Runnable(){
+                                      public void run()
+                                      {
+                                        tightener = new MultiresTightener(kd, multiresLevels);
+                                        publishFrame();
+                                      }});
+                                    simExecutor.execute(theApp);
+                                  }});
+    stepsPerFrameSpinner = new JSpinner(new SpinnerNumberModel(stepsPerFrame, 1, 1000000, 1));
+    stepsPerFrameSpinner.addChangeListener(new ChangeListener(){
+                                  public void stateChanged(ChangeEvent e)
+                                  {
+                                    stepsPerFrame = ((Number)stepsPerFrameSpinner.getValue()).intValue();
                                   }});
+    viewTimer = new javax.swing.Timer(1000 / framesPerSecond, new ActionListener(){
+                                  public void actionPerformed(ActionEvent e)
+                                  {
+                                    KnotFrame frame = latestFrame.getAndSet(null);
+                                    if(frame!=null)
+                                      knotViewer.update(frame);
+                                  }});
+    viewTimer.start();
     Box viewsBox = Box.createHorizontalBox();
     Box buttonsBox = Box.createHorizontalBox();
     Box vertBox = Box.createVerticalBox();
@@ -140,6 +199,9 @@ public class KnotApp extends JFrame implements Runnable
     buttonsBox.add(saveKnotButton);
     buttonsBox.add(goButton);
     buttonsBox.add(goOnceButton);
+    buttonsBox.add(autoTightenButton);
+    buttonsBox.add(new JLabel(" Iterations per frame: "));
+    buttonsBox.add(stepsPerFrameSpinner);
     vertBox.add(viewsBox);
     vertBox.add(buttonsBox);
     getContentPane().add(vertBox);
@@ -158,11 +220,17 @@ public class KnotApp extends JFrame implements Runnable
     {
 	  defaultLoadDirectory = inFile.getParentFile();
       FileInputStream inStream = new FileInputStream(inFile);
-      kd = new KnotData(inStream);
+      final KnotData newkd = new KnotData(inStream);
       inStream.close();
-      initialkd = kd.getCopy();
-      // knotViewer = new KnotDataViewer(knotViewerWidth, knotViewerHeight, kd);
-      knotViewer.update(kd);
+      running = false;
+      simExecutor.execute(new Runnable(){ // Swap it in once any run in progress has stopped
+                                  public void run()
+                                  {
+                                    kd = newkd;
+                                    tightener = null;
+                                    initialkd = kd.getCopy();
+                                    publishFrame();
+                                  }});
     }
     catch(IOException e)
     {
@@ -171,9 +239,16 @@ public class KnotApp extends JFrame implements Runnable
     }
   } // End of: loadKnotData(File inFile)
   
-  public void saveKnotData(File saveFile)
+  public void saveKnotData(final File saveFile)
+  {
+    simExecutor.execute(new Runnable(){ // Takes the text between iterations, so it's all from the same one
+                                  public void run()
+                                  {
+                                    writeKnotData(saveFile, kd.toString());
+                                  }});
+  }
+  private void writeKnotData(File saveFile, String outString)
   {
-    String outString = kd.toString();
 	// Open a BufferedWriter and save the file
 	try
 	{
@@ -192,30 +267,58 @@ public class KnotApp extends JFrame implements Runnable
 	}
   }
   
-  public void run()
+  public void run() // Runs on simExecutor, until running goes false
   {
     if(kd==null) return; // If there's no knot data then we do nothing
 
     do
     {
-      // Carry out an iteration
-      kd.iterate();
-      
-      // Update the viewer
-      if(knotViewer!=null)
-        knotViewer.update(kd);
+      // Carry out a frame's worth of iterations
+      for(int i=stepsPerFrame; i>0 && running; i--)
+        step();
       
-      try
-      {
-        Thread.sleep(10);
-      }catch(InterruptedException e){}
+      // Give the viewer a new snapshot, unless it hasn't got round to the last one yet
+      if(latestFrame.get()==null)
+        publishFrame();
     } // End of thread loop
     while(running);
 
-    // Update the algoProgress text
-    algoProgTextPane.setText(kd.getAlgoProgress());
-
-    goButton.setText("GO!");
+    publishFrame();
+    showProgress();
+    SwingUtilities.invokeLater(new Runnable(){
+                                  public void run()
+                                  {
+                                    goButton.setText("GO!");
+                                  }});
   } // End of: run()
 
+  private void step() // One iteration, on simExecutor
+  {
+    if(tightener!=null)
+    {
+      if(!tightener.step()) // Finest level has levelled off, so the automatic run is done
+      {
+        tightener = null;
+        running = false;
+      }
+    }
+    else
+      kd.iterate();
+  }
+
+  private void publishFrame() // On simExecutor
+  {
+    latestFrame.set(new KnotFrame(kd));
+  }
+
+  private void showProgress() // On simExecutor - updates the algoProgress text
+  {
+    final String text = kd.getAlgoProgress() + (kd.getMetrics()==null ? "" : kd.getMetrics().toString());
+    SwingUtilities.invokeLater(new Runnable(){
+                                  public void run()
+                                  {
+                                    algoProgTextPane.setText(text);
+                                  }});
+  }
+
 }
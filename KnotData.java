@@ -17,69 +17,52 @@ This file is part of TONO.
 
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.*;
+import java.nio.*;
 
 public class KnotData implements Serializable, Cloneable
 {
-  private Vector strands; // Will hold a collection of KnotAtom[] arrays
+  private Vector strands; // Will hold a collection of KnotAtom[] arrays (null if the atoms are kept off the heap)
+  private KnotStorage storage; // What the algorithms get at the atoms through - normally a HeapStorage, over the strands
   private KnotAtom[] curStr, curStr2; // Used to hold the "current strand" for various purposes
-  private Vector nn; // A vector - for each strand it contains a Vector[] array, each of which lists an atom's nearby neighbours
+  private NeighbourTable nn; // Lists each atom's nearby neighbours
 
   private float atomRadius = 1.01f;
   private float leashLength = 1.51f;
   private float deltaParameter = 0.11f; // Affects how much space is left between corrected overlaps
   private float etaParameter = 0.21f; // Affects how close things need to be to be classed as neighbours
   private int skippedParameter = 1;
+  private int rebuildInterval = 200; // How many iterations between neighbour-table rebuilds in iterate()
+  private long randomSeed = new SplittableRandom().nextLong(); // Chooses the sweep start points and directions in CL and RO
+  private transient SplittableRandom random; // Re-seeded from randomSeed every iteration - so any iteration can be replayed, even after a checkpoint
   
   private StringBuffer algoProgress = new StringBuffer();
+  private Vector<ForceTerm> forceTerms = new Vector<ForceTerm>(1,1); // The ForceTerms applied by applyForces(), in order
   
   public KnotData() // Creates an EMPTY knot - only for placeholder use!
   {
     strands = new Vector(1,1);
-    nn = new Vector(1,1);
+    storage = new HeapStorage(strands);
+    nn = new NeighbourTable(storage, 0);
+    addForceTerm(new AtomForces());
   }
   public KnotData(InputStream inStream) throws IOException
   {
     BufferedReader bReader = new BufferedReader(new InputStreamReader(inStream));
     strands = new Vector(1,1);
-    nn = new Vector(1,1);
     String curLine;
     Vector atoms = new Vector(); // Temporary holder - gets converted into array
-    StringTokenizer tokenizer;
-    float[] coords; // Temporary holder for co-ordinates
-
-    // Read the parameters from the data file's first line
-    curLine=bReader.readLine();
-    if(curLine==null)
-      throw new IOException("Data stream is empty!");
-    tokenizer = new StringTokenizer(curLine, "\t", false); // Chop it up using tab delimiters
-    if(tokenizer.hasMoreTokens())
-      atomRadius = (Float.valueOf(tokenizer.nextToken())).floatValue();
-    if(tokenizer.hasMoreTokens())
-      leashLength = (Float.valueOf(tokenizer.nextToken())).floatValue();
-    if(tokenizer.hasMoreTokens())
-      deltaParameter = (Float.valueOf(tokenizer.nextToken())).floatValue();
-    if(tokenizer.hasMoreTokens())
-      etaParameter = (Float.valueOf(tokenizer.nextToken())).floatValue();
-    if(tokenizer.hasMoreTokens())
-      skippedParameter = (Integer.valueOf(tokenizer.nextToken())).intValue();
-
+    float[] coords = new float[6]; // Temporary holder for co-ordinates
 
+    readParameters(bReader);
     bReader.readLine(); // Discard the second line - it provides a gap between the params and the atomic coords
 
     while(true) // This loop iterates through the lines of the input file
     {
       curLine=bReader.readLine();
-      if(!(curLine==null || curLine.equals("") || curLine.startsWith("\t"))) // If it contains data then let's use it
+      if(isAtomLine(curLine)) // If it contains data then let's use it
       {
-        tokenizer = new StringTokenizer(curLine, "\t", false); // Chop it up using tab delimiters
-        coords = new float[6];
-        Arrays.fill(coords, 0.0f);
-        for(int i=0; i<coords.length; i++)
-        {
-          if(!tokenizer.hasMoreTokens())
-            break;
-          coords[i] = (Float.valueOf(tokenizer.nextToken())).floatValue();
-        }
+        readAtom(curLine, coords);
         atoms.add(new KnotAtom(coords[0],coords[1],coords[2],coords[3],coords[4],coords[5]));
       } // End of line-ain't-blank
       else               // Else a blank line indicates a new strand is begun 
@@ -89,19 +72,125 @@ public class KnotData implements Serializable, Cloneable
         for(int i=0; i<curStr.length; i++)
           curStr[i] = (KnotAtom)atoms.get(i);
         strands.add(curStr);
-        nn.add(new Vector[curStr.length]);
 ////        System.out.println("Added new strand to vector! Length="+atoms.size());
         atoms = new Vector(); // Empty out the vector which holds the currently-being-generated strand
       }
       if(curLine==null) // End of file
         break;
     } // End of the thing that loops through the input stream
+
+    storage = new HeapStorage(strands);
+    nn = new NeighbourTable(storage, storage.numAtoms());
+    addForceTerm(new AtomForces()); // The forces given in the file
     
     
   } // End of constructor using InputStream
 
+  // Loads a knot too big for the heap: the atoms and the neighbour table get kept off it, in an OffHeapStorage
+  // (mapped from the backing file, if that isn't null). The file gets read twice - once to count the atoms, so
+  // that they can go straight into their proper home the second time. get() and the methods which replace the
+  // atoms (interpolate(), rethread() etc) need the atoms on the heap, so they can't be used on such a knot.
+  public KnotData(File knotFile, File backing) throws IOException
+  {
+    String curLine;
+    int[] lengths = new int[16];
+    int numStr = 0, atomsInStrand = 0;
+    BufferedReader bReader = new BufferedReader(new FileReader(knotFile));
+    try
+    {
+      readParameters(bReader);
+      bReader.readLine();
+      while(true)
+      {
+        curLine=bReader.readLine();
+        if(isAtomLine(curLine))
+          atomsInStrand++;
+        else if(atomsInStrand>0)
+        {
+          if(numStr==lengths.length)
+            lengths = Arrays.copyOf(lengths, numStr*2);
+          lengths[numStr++] = atomsInStrand;
+          atomsInStrand = 0;
+        }
+        if(curLine==null)
+          break;
+      }
+    }
+    finally
+    {
+      bReader.close();
+    }
+
+    storage = new OffHeapStorage(Arrays.copyOf(lengths, numStr), backing);
+    float[] coords = new float[6];
+    int a = 0;
+    bReader = new BufferedReader(new FileReader(knotFile));
+    try
+    {
+      bReader.readLine();
+      bReader.readLine();
+      while((curLine=bReader.readLine())!=null)
+        if(isAtomLine(curLine))
+        {
+          if(a==storage.numAtoms())
+            throw new IOException(knotFile + " changed while it was being read");
+          readAtom(curLine, coords);
+          storage.setPosition(a, coords[0], coords[1], coords[2]);
+          storage.setForce(a++, coords[3], coords[4], coords[5]);
+        }
+    }
+    finally
+    {
+      bReader.close();
+    }
+    if(a!=storage.numAtoms())
+      throw new IOException(knotFile + " changed while it was being read");
+
+    nn = new NeighbourTable(storage, storage.numAtoms());
+    addForceTerm(new AtomForces());
+  } // End of constructor using File
+
+  // Reads the parameters from the data file's first line
+  private void readParameters(BufferedReader bReader) throws IOException
+  {
+    String curLine=bReader.readLine();
+    if(curLine==null)
+      throw new IOException("Data stream is empty!");
+    StringTokenizer tokenizer = new StringTokenizer(curLine, "\t", false); // Chop it up using tab delimiters
+    if(tokenizer.hasMoreTokens())
+      atomRadius = (Float.valueOf(tokenizer.nextToken())).floatValue();
+    if(tokenizer.hasMoreTokens())
+      leashLength = (Float.valueOf(tokenizer.nextToken())).floatValue();
+    if(tokenizer.hasMoreTokens())
+      deltaParameter = (Float.valueOf(tokenizer.nextToken())).floatValue();
+    if(tokenizer.hasMoreTokens())
+      etaParameter = (Float.valueOf(tokenizer.nextToken())).floatValue();
+    if(tokenizer.hasMoreTokens())
+      skippedParameter = (Integer.valueOf(tokenizer.nextToken())).intValue();
+    if(tokenizer.hasMoreTokens())
+      randomSeed = (Long.valueOf(tokenizer.nextToken())).longValue();
+    if(tokenizer.hasMoreTokens())
+      rebuildInterval = Math.max((Integer.valueOf(tokenizer.nextToken())).intValue(), 1);
+  }
+  private static boolean isAtomLine(String curLine) // Otherwise it's the end of a strand (or of the file)
+  {
+    return !(curLine==null || curLine.equals("") || curLine.startsWith("\t"));
+  }
+  private static void readAtom(String curLine, float[] coords) // x, y, z, xf, yf, zf - any missing are 0
+  {
+    StringTokenizer tokenizer = new StringTokenizer(curLine, "\t", false);
+    Arrays.fill(coords, 0.0f);
+    for(int i=0; i<coords.length; i++)
+    {
+      if(!tokenizer.hasMoreTokens())
+        break;
+      coords[i] = (Float.valueOf(tokenizer.nextToken())).floatValue();
+    }
+  }
+
   public KnotAtom[] get(int strandNum)
   {
+    needHeap("get");
     if(strandNum<0 || strandNum>= strands.size())
       throw new IllegalArgumentException("Illegal argument: KnotData.get(" + strandNum + ")");
     return (KnotAtom[])(strands.get(strandNum));
@@ -115,8 +204,237 @@ public class KnotData implements Serializable, Cloneable
   }
   public int numStrands()
   {
-    return strands.size();
+    return storage.numStrands();
+  }
+  public int strandLength(int strandNum)
+  {
+    if(strandNum<0 || strandNum>=storage.numStrands())
+      throw new IllegalArgumentException("Illegal argument: KnotData.strandLength(" + strandNum + ")");
+    return storage.strandStart(strandNum+1) - storage.strandStart(strandNum);
   }
+  // For getting at the atoms by number (see KnotStorage) - which works wherever they're kept, unlike get()
+  public KnotStorage getStorage()
+  {
+    return storage;
+  }
+  private void needHeap(String method)
+  {
+    if(strands==null)
+      throw new UnsupportedOperationException("KnotData." + method + "() needs the atoms on the heap, and this knot keeps them in " + storage);
+  }
+
+  // Adds a new strand on the end. The force arrays may be null, meaning no forces.
+  public void addStrand(float[] x, float[] y, float[] z, float[] xf, float[] yf, float[] zf)
+  {
+    addStrands(new float[][]{x}, new float[][]{y}, new float[][]{z}, new float[][]{xf}, new float[][]{yf}, new float[][]{zf});
+  }
+  // Adds several strands on the end: strand i has co-ordinates x[i], y[i], z[i]. The force arrays (or any of
+  // their strands) may be null, as in addStrand(). Much quicker than adding them one at a time, since the
+  // index of the atoms, the neighbour table and the force terms only get redone once.
+  synchronized public void addStrands(float[][] x, float[][] y, float[][] z, float[][] xf, float[][] yf, float[][] zf)
+  {
+    needHeap("addStrands");
+    if(x.length!=y.length || x.length!=z.length)
+      throw new IllegalArgumentException("Illegal argument: KnotData.addStrands() needs x, y and z for the same strands");
+    for(int i=0; i<x.length; i++)
+      if(x[i].length!=y[i].length || x[i].length!=z[i].length)
+        throw new IllegalArgumentException("Illegal argument: KnotData.addStrands() needs x, y and z of the same length");
+    for(int i=0; i<x.length; i++)
+    {
+      float[] sxf = (xf==null) ? null : xf[i], syf = (yf==null) ? null : yf[i], szf = (zf==null) ? null : zf[i];
+      KnotAtom[] newStr = new KnotAtom[x[i].length];
+      for(int j=0; j<newStr.length; j++)
+        newStr[j] = new KnotAtom(x[i][j], y[i][j], z[i][j], (sxf==null) ? 0 : sxf[j], (syf==null) ? 0 : syf[j], (szf==null) ? 0 : szf[j]);
+      strands.add(newStr);
+    }
+    ((HeapStorage)storage).reindex();
+    nn = new NeighbourTable(nn, storage, storage.numAtoms()); // The new atoms have no neighbours yet
+    cancelNeighbourBuild(); // Its table wouldn't have the new strand
+    rebindForceTerms();
+  }
+
+  // Everybody's neighbour lists, packed end to end in atom order: atom a's neighbours are get(k) for k
+  // from start(a) up to (but not including) start(a+1). The buffers come from the storage, so the table
+  // lives wherever the atoms do. A big knot's lists won't fit in one buffer, so they're kept in chunks.
+  static class NeighbourTable implements Serializable
+  {
+    private static final long serialVersionUID = 1L;
+    private static final int CHUNK_BITS = 24; // 2^24 ints per chunk (a buffer can't hold more than 2^31 bytes)
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private int  numAtoms;
+    private long size;
+    private transient LongBuffer  start;
+    private transient IntBuffer[] chunks = new IntBuffer[0];
+    private transient KnotStorage storage; // Only needed while the lists are being added
+
+    NeighbourTable(KnotStorage storage, int numAtoms) // Nobody has any neighbours (until they get add()ed)
+    {
+      this.storage = storage;
+      this.numAtoms = numAtoms;
+      start = storage.allocateLongs(numAtoms+1);
+    }
+    NeighbourTable(NeighbourTable old, KnotStorage storage, int numAtoms) // The same lists, plus empty ones for the atoms added on the end
+    {
+      this(storage, numAtoms);
+      for(int a=0; a<=old.numAtoms; a++)
+        start.put(a, old.start.get(a));
+      for(int a=old.numAtoms+1; a<=numAtoms; a++)
+        start.put(a, old.size);
+      chunks = old.chunks;
+      size = old.size;
+    }
+
+    int numAtoms()
+    {
+      return numAtoms;
+    }
+    long size() // Total length of the lists
+    {
+      return size;
+    }
+    long start(int atomNum)
+    {
+      return start.get(atomNum);
+    }
+    int get(long k)
+    {
+      return chunks[(int)(k >>> CHUNK_BITS)].get((int)(k & CHUNK_MASK));
+    }
+
+    // The lists get built by going through the atoms in order, calling startAtom() for each one and then add() for each of its neighbours
+    void startAtom(int atomNum)
+    {
+      start.put(atomNum, size);
+    }
+    void add(int atomNum)
+    {
+      int chunk = (int)(size >>> CHUNK_BITS), k = (int)(size & CHUNK_MASK);
+      if(chunk==chunks.length) // The first chunk starts off small and doubles until it's full size, so small knots' tables stay small
+      {
+        chunks = Arrays.copyOf(chunks, chunk+1);
+        chunks[chunk] = storage.allocateInts((chunk==0) ? Math.min(Math.max(numAtoms*4, 1024), CHUNK_SIZE) : CHUNK_SIZE);
+      }
+      else if(k==chunks[chunk].capacity())
+      {
+        IntBuffer bigger = storage.allocateInts(Math.min(k*2, CHUNK_SIZE));
+        chunks[chunk].rewind();
+        bigger.put(chunks[chunk]);
+        chunks[chunk] = bigger;
+      }
+      chunks[chunk].put(k, atomNum);
+      size++;
+    }
+    void finish()
+    {
+      start.put(numAtoms, size);
+      storage = null;
+    }
+
+    // The buffers aren't Serializable, so the lists get written out one by one - and come back on the heap
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+      out.defaultWriteObject();
+      for(int a=0; a<=numAtoms; a++)
+        out.writeLong(start.get(a));
+      for(long k=0; k<size; k++)
+        out.writeInt(get(k));
+    }
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+      in.defaultReadObject();
+      start = LongBuffer.allocate(numAtoms+1);
+      for(int a=0; a<=numAtoms; a++)
+        start.put(a, in.readLong());
+      chunks = new IntBuffer[(int)((size + CHUNK_MASK) >>> CHUNK_BITS)];
+      for(int c=0; c<chunks.length; c++)
+        chunks[c] = IntBuffer.allocate((int)Math.min(size - ((long)c << CHUNK_BITS), CHUNK_SIZE));
+      for(long k=0; k<size; k++)
+        chunks[(int)(k >>> CHUNK_BITS)].put((int)(k & CHUNK_MASK), in.readInt());
+    }
+  } // End of class NeighbourTable
+
+  // The usual storage: a KnotAtom object per atom, in the strand arrays which get() hands out. It keeps its
+  // own index of them all end to end, so reindex() must be called whenever the strands change.
+  private static class HeapStorage implements KnotStorage, Serializable
+  {
+    private static final long serialVersionUID = 1L;
+    private Vector<?> strands;
+    private KnotAtom[] atoms;
+    private int[] starts; // Where each strand starts in atoms
+
+    HeapStorage(Vector<?> strands)
+    {
+      this.strands = strands;
+      reindex();
+    }
+    void reindex()
+    {
+      starts = new int[strands.size()+1];
+      for(int i=0; i<strands.size(); i++)
+        starts[i+1] = starts[i] + ((KnotAtom[])strands.get(i)).length;
+      atoms = new KnotAtom[starts[strands.size()]];
+      for(int i=0; i<strands.size(); i++)
+        System.arraycopy((KnotAtom[])strands.get(i), 0, atoms, starts[i], starts[i+1] - starts[i]);
+    }
+
+    public int numStrands()
+    {
+      return starts.length - 1;
+    }
+    public int strandStart(int strandNum)
+    {
+      return starts[strandNum];
+    }
+    public int numAtoms()
+    {
+      return atoms.length;
+    }
+    public float getX(int atomNum) { return atoms[atomNum].x; }
+    public float getY(int atomNum) { return atoms[atomNum].y; }
+    public float getZ(int atomNum) { return atoms[atomNum].z; }
+    public void setPosition(int atomNum, float x, float y, float z)
+    {
+      KnotAtom atom = atoms[atomNum];
+      atom.x = x;
+      atom.y = y;
+      atom.z = z;
+    }
+    public void move(int atomNum, float dx, float dy, float dz)
+    {
+      KnotAtom atom = atoms[atomNum];
+      atom.x += dx;
+      atom.y += dy;
+      atom.z += dz;
+    }
+    public float getXf(int atomNum) { return atoms[atomNum].xf; }
+    public float getYf(int atomNum) { return atoms[atomNum].yf; }
+    public float getZf(int atomNum) { return atoms[atomNum].zf; }
+    public void setForce(int atomNum, float xf, float yf, float zf)
+    {
+      KnotAtom atom = atoms[atomNum];
+      atom.xf = xf;
+      atom.yf = yf;
+      atom.zf = zf;
+    }
+    public IntBuffer allocateInts(int n)
+    {
+      return IntBuffer.allocate(n);
+    }
+    public LongBuffer allocateLongs(int n)
+    {
+      return LongBuffer.allocate(n);
+    }
+    public FloatBuffer allocateFloats(int n)
+    {
+      return FloatBuffer.allocate(n);
+    }
+    public String toString()
+    {
+      return "heap storage";
+    }
+  } // End of class HeapStorage
 
   public class KnotAtom implements Serializable
   {
@@ -139,21 +457,30 @@ public class KnotData implements Serializable, Cloneable
   
   public String toString()
   {
-    StringBuffer ret = new StringBuffer(atomRadius+"\t"+leashLength+"\t"+deltaParameter+"\t"+etaParameter+"\t"+skippedParameter+"\nThis second row of the datafile is ignored. The row above specifies(in this order): atom radius, leash length, deltaParameter, etaParameter, skippedParameter\n");
-    Iterator i = strands.iterator();
-    while(i.hasNext())
+    StringWriter ret = new StringWriter();
+    try
+    {
+      write(ret);
+    }
+    catch(IOException e) // A StringWriter doesn't throw them
     {
-      curStr = (KnotAtom[])i.next();
-      for(int j=0; j<curStr.length; j++)
-      {
-        ret.append(curStr[j].toString());
-        ret.append("\n");
-      }
-      ret.append("\n");
     }
     return ret.toString();
   } // End of KnotData's toString() method
 
+  // Writes the knot in the same format as the files it gets read from, a line at a time - for knots too big to toString()
+  synchronized public void write(Writer out) throws IOException
+  {
+    out.write(atomRadius+"\t"+leashLength+"\t"+deltaParameter+"\t"+etaParameter+"\t"+skippedParameter+"\t"+randomSeed+"\t"+rebuildInterval+"\nThis second row of the datafile is ignored. The row above specifies(in this order): atom radius, leash length, deltaParameter, etaParameter, skippedParameter, random seed, rebuild interval\n");
+    for(int i=0; i<storage.numStrands(); i++)
+    {
+      for(int a=storage.strandStart(i); a<storage.strandStart(i+1); a++)
+        out.write(""+storage.getX(a)+"\t"+storage.getY(a)+"\t"+storage.getZ(a)+"\t"+storage.getXf(a)+"\t"+storage.getYf(a)+"\t"+storage.getZf(a)+"\n");
+      out.write("\n");
+    }
+    out.flush();
+  }
+
   public void controlLeashesCL()
   {
     controlLeashesCL(atomRadius, leashLength);
@@ -165,42 +492,30 @@ public class KnotData implements Serializable, Cloneable
   }
   public void controlLeashesCL(int strandNum, float radius, float dl)
   {
-    controlLeashesCL(strandNum, radius, dl, (int)Math.floor(Math.random() * get(strandNum).length), Math.random()>=0.5);
+    SplittableRandom r = random();
+    controlLeashesCL(strandNum, radius, dl, r.nextInt(Math.max(strandLength(strandNum), 1)), r.nextBoolean());
   }
   synchronized public void controlLeashesCL(int strandNum, float radius, float dl, int startAt, boolean goUpwards)
   {
 //    algoProgress.append("-controlLeashesCL("+strandNum+", "+radius+", "+dl+", "+startAt+", "+goUpwards+")\n");
-    float d, ex, ey, ez, ddOver2, dx, dy, dz;
-    curStr = get(strandNum);
+    float d, ddOver2;
+    int numAtoms = strandLength(strandNum), first = storage.strandStart(strandNum);
     int iPlus1;
+    double strandLength = 0.0, sumSq = 0.0; // For the metrics
+    float maxStretch = 0.0f;
     int i = startAt;
-    for(int j=0; j<curStr.length; j++)
+    for(int j=0; j<numAtoms; j++)
     {
       iPlus1 = i+1;
-      
-      if(iPlus1<curStr.length) // In this program the two end atoms don't interact - i.e. we cannot loop
+
+      if(iPlus1<numAtoms) // In this program the two end atoms don't interact - i.e. we cannot loop
       {
-      
-        // CL calculations follow, as specified in the spaghetti paper
-        // d is the 3-dimensional gap between two adjacent loci - and actually "d" is the magnitude
-        dx = curStr[iPlus1].x - curStr[i].x;
-        dy = curStr[iPlus1].y - curStr[i].y;
-        dz = curStr[iPlus1].z - curStr[i].z;
-        d = (float)Math.sqrt(dx*dx + dy*dy + dz*dz);
+        d = pullLeash(storage, first + i, first + iPlus1, dl, true, true);
+        maxStretch = Math.max(maxStretch, d / dl);
         if(d > dl && d!=0.0f)
         {
-          // e is a unit vector along the line joining the two loci
-          ex = dx/d;
-          ey = dy/d;
-          ez = dz/d;
           ddOver2 = (dl - d)/2;
-          // So now we move the two loci to their properly-repelled positions
-          curStr[i].x -= ddOver2 * ex;
-          curStr[i].y -= ddOver2 * ey;
-          curStr[i].z -= ddOver2 * ez;
-          curStr[iPlus1].x += ddOver2 * ex;
-          curStr[iPlus1].y += ddOver2 * ey;
-          curStr[iPlus1].z += ddOver2 * ez;
+          sumSq += 2 * ddOver2 * ddOver2;
         }
       }
       
@@ -208,14 +523,52 @@ public class KnotData implements Serializable, Cloneable
       if(goUpwards) i=iPlus1; else i--;
       // Wraparound
       if(i == -1)
-        i = curStr.length-1;
-      else if(i>=curStr.length)
+        i = numAtoms-1;
+      else if(i>=numAtoms)
         i = 0;
     }
-    
-    
+
+    // One sweep doesn't leave every leash within dl (pulling one leash in stretches its neighbours), so the
+    // rope length gets measured afresh once the sweep is over
+    for(int a=first; a<first+numAtoms-1; a++)
+      strandLength += distance(storage, a, a+1);
+    currentMetrics().leashesDone(strandNum, numAtoms, (float)strandLength, maxStretch, sumSq);
   } // End of controlLeashesCL(int strandNum, float radius, float dl, int startAt, boolean goUpwards)
 
+  // The distance between atoms a and b
+  static float distance(KnotStorage atoms, int a, int b)
+  {
+    float dx = atoms.getX(b) - atoms.getX(a), dy = atoms.getY(b) - atoms.getY(a), dz = atoms.getZ(b) - atoms.getZ(a);
+    return (float)Math.sqrt(dx*dx + dy*dy + dz*dz);
+  }
+
+  // CL on a single leash, between atoms a and b (next to each other along a strand): if they're more than dl apart they
+  // get pulled together until they're not, each moving half the excess - or only the ones allowed to move (DomainWorker
+  // can't move its ghosts). Returns the distance between them beforehand, for the metrics.
+  static float pullLeash(KnotStorage atoms, int a, int b, float dl, boolean moveA, boolean moveB)
+  {
+    // CL calculations follow, as specified in the spaghetti paper
+    // d is the 3-dimensional gap between two adjacent loci - and actually "d" is the magnitude
+    float dx = atoms.getX(b) - atoms.getX(a);
+    float dy = atoms.getY(b) - atoms.getY(a);
+    float dz = atoms.getZ(b) - atoms.getZ(a);
+    float d = (float)Math.sqrt(dx*dx + dy*dy + dz*dz);
+    if(d > dl && d!=0.0f)
+    {
+      // e is a unit vector along the line joining the two loci
+      float ex = dx/d;
+      float ey = dy/d;
+      float ez = dz/d;
+      float ddOver2 = (dl - d)/2;
+      // So now we move the two loci to their properly-repelled positions
+      if(moveA)
+        atoms.move(a, -ddOver2 * ex, -ddOver2 * ey, -ddOver2 * ez);
+      if(moveB)
+        atoms.move(b, ddOver2 * ex, ddOver2 * ey, ddOver2 * ez);
+    }
+    return d;
+  }
+
 
   public void findNeighboursFN() // R = radius of spheres, E = small parameter of bitmoreneighbourhoodness
   {
@@ -224,35 +577,372 @@ public class KnotData implements Serializable, Cloneable
   synchronized public void findNeighboursFN(float R, float E, int skipped) // R = radius of spheres, E = small parameter of bitmoreneighbourhoodness
   {
 //    algoProgress.append("-findNeighboursFN("+R+", "+E+", "+skipped+")\n");
-    Vector[] curNn;
-    int i,j,k,l;
-    float dx, dy, dz;
+    FloatBuffer coords = snapshotPositions();
+    FnScratch scratch = takeScratch();
+    nn = buildNeighbourTable(storage, strandStarts(), coords, R, E, skipped, scratch);
+    giveBackScratch(scratch);
+    spareCoords = coords;
+    tableEta = E;
+    tableInterval = rebuildInterval;
+    tableStartedAt = iterationsSoFar;
+    cancelNeighbourBuild(); // This one's newer
+  } // End of synchronized public void findNeighboursFN()
+
+  // Pipelined FN: instead of stopping to rebuild the neighbour table, iterate() can have it built on a
+  // background thread from a snapshot of the positions, carrying on with the old table meanwhile. The new
+  // table gets swapped in a fixed number of iterations (the lag) later - waiting for it if it isn't ready -
+  // so the run is just as repeatable as without the pipeline. By then the atoms will have moved on from the
+  // snapshot, so the table gets built with a bigger eta, to cover that movement as well as the usual.
+  // Anything that changes the strands or parameters (or calls FN directly) throws a pending build away.
+  private int     pipelineLag = 0; // 0 means FN happens in iterate() as usual
+  private float   pipelineExtraEta = 0.0f;
+  private transient FloatBuffer pendingCoords; // The snapshot a pending build is working from (kept, so a checkpoint can redo the build)
+  private int     pendingSwapAt, pendingStartedAt;
+  private float   pendingEta;     // etaParameter (without the extra) and rebuildInterval when the pending build started
+  private int     pendingInterval;
+  private long    pendingNanos;   // Time spent starting it off (for the NeighbourTuner)
+  // What the table in use was built with, and the iteration its build started at (which the rebuild schedule goes by)
+  private float   tableEta;
+  private int     tableInterval, tableStartedAt;
+  private transient Future<NeighbourTable> pendingTable;
+  private static ExecutorService neighbourBuilder; // Shared by every KnotData
+
+  // lag is how many iterations the background build gets (0 turns the pipeline off), extraEta how much eta gets enlarged by
+  synchronized public void setPipelinedNeighbours(int lag, float extraEta)
+  {
+    if(lag<0 || lag>=rebuildInterval || extraEta<0)
+      throw new IllegalArgumentException("Illegal argument: KnotData.setPipelinedNeighbours(" + lag + ", " + extraEta + ")");
+    pipelineLag = lag;
+    pipelineExtraEta = extraEta;
+    cancelNeighbourBuild();
+  }
+  public int getPipelineLag()
+  {
+    return pipelineLag;
+  }
+
+  private void startNeighbourBuild()
+  {
+    if(pendingCoords!=null) // The last one's still going
+      return;
+    final KnotStorage atoms = storage;
+    final int[] starts = strandStarts();
+    final FloatBuffer coords = snapshotPositions();
+    final float R = atomRadius, E = etaParameter + pipelineExtraEta;
+    final int skipped = skippedParameter;
+    pendingCoords = coords;
+    pendingStartedAt = iterationsSoFar;
+    pendingSwapAt = iterationsSoFar + Math.min(pipelineLag, rebuildInterval - 1); // The tuner may have made the interval shorter than the lag
+    pendingEta = etaParameter;
+    pendingInterval = rebuildInterval;
+    pendingTable = neighbourBuilder().submit(new Callable<NeighbourTable>(){
+                                  public NeighbourTable call()
+                                  {
+                                    FnScratch scratch = takeScratch();
+                                    try
+                                    {
+                                      return buildNeighbourTable(atoms, starts, coords, R, E, skipped, scratch);
+                                    }
+                                    finally
+                                    {
+                                      giveBackScratch(scratch);
+                                    }
+                                  }});
+  }
+
+  private void swapInNeighbours()
+  {
+    NeighbourTable table = null;
+    try
+    {
+      if(pendingTable!=null)
+        table = pendingTable.get();
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    catch(ExecutionException e)
+    {
+      throw new RuntimeException("Background neighbour search failed", e.getCause());
+    }
+    if(table==null) // We've been restored from a checkpoint (or interrupted), so build it here from the same snapshot
+    {
+      FnScratch scratch = takeScratch();
+      table = buildNeighbourTable(storage, strandStarts(), pendingCoords, atomRadius, pendingEta + pipelineExtraEta, skippedParameter, scratch);
+      giveBackScratch(scratch);
+    }
+    nn = table;
+    spareCoords = pendingCoords; // The build's finished with it
+    tableEta = pendingEta;
+    tableInterval = pendingInterval;
+    tableStartedAt = pendingStartedAt;
+    pendingCoords = null;
+    pendingTable = null;
+  }
+
+  // The snapshot is in a buffer, which isn't Serializable, so it gets written out as an array (and comes back on the heap)
+  private void writeObject(ObjectOutputStream out) throws IOException
+  {
+    out.defaultWriteObject();
+    float[] pending = null;
+    if(pendingCoords!=null)
+    {
+      pending = new float[pendingCoords.capacity()];
+      for(int i=0; i<pending.length; i++)
+        pending[i] = pendingCoords.get(i);
+    }
+    out.writeObject(pending);
+  }
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+  {
+    in.defaultReadObject();
+    float[] pending = (float[])in.readObject();
+    if(pending!=null)
+      pendingCoords = FloatBuffer.wrap(pending);
+  }
+
+  private void cancelNeighbourBuild()
+  {
+    if(pendingTable!=null)
+      pendingTable.cancel(false);
+    pendingTable = null;
+    pendingCoords = null;
+  }
+
+  private static synchronized ExecutorService neighbourBuilder()
+  {
+    if(neighbourBuilder==null)
+      neighbourBuilder = Executors.newCachedThreadPool(new ThreadFactory(){
+                                  public Thread newThread(Runnable r)
+                                  {
+                                    Thread t = new Thread(r, "KnotData neighbour search");
+                                    t.setDaemon(true);
+                                    return t;
+                                  }});
+    return neighbourBuilder;
+  }
+
+  private KnotAtom[][] snapshotStrands() // The strand arrays as they are now - buildNeighbourTable() mustn't see them change under it
+  {
+    KnotAtom[][] ret = new KnotAtom[strands.size()][];
+    for(int i=0; i<ret.length; i++)
+      ret[i] = get(i);
+    return ret;
+  }
+
+  private int[] strandStarts() // Where each strand starts, as things are now - see KnotStorage.strandStart()
+  {
+    int[] ret = new int[storage.numStrands()+1];
+    for(int i=0; i<ret.length; i++)
+      ret[i] = storage.strandStart(i);
+    return ret;
+  }
+
+  // Every atom's position, packed as x,y,z triples in a buffer from the storage. The buffer gets reused from one
+  // snapshot to the next (once FN has finished with it), so big knots aren't forever allocating them.
+  private transient FloatBuffer spareCoords;
+  private FloatBuffer snapshotPositions()
+  {
+    int n = storage.numAtoms();
+    FloatBuffer ret = spareCoords;
+    spareCoords = null;
+    if(ret==null || ret.capacity()!=n*3)
+      ret = storage.allocateFloats(n*3);
+    for(int a=0; a<n; a++)
+    {
+      ret.put(a*3,   storage.getX(a));
+      ret.put(a*3+1, storage.getY(a));
+      ret.put(a*3+2, storage.getZ(a));
+    }
+    return ret;
+  }
+
+  // FN's working space, kept from one build to the next for the same reason. A cancelled background build can
+  // still be running when the next one starts, so each build takes it (or makes its own) and hands it back after.
+  static class FnScratch // (DomainWorker keeps one too)
+  {
+    IntBuffer   cellStart, stamp, sorted;
+    FloatBuffer sortedCoords;
+    void ensure(KnotStorage storage, int n, int tableSize)
+    {
+      if(cellStart==null || cellStart.capacity() < tableSize+1)
+      {
+        cellStart = storage.allocateInts(tableSize+1);
+        stamp = storage.allocateInts(tableSize);
+      }
+      if(sorted==null || sorted.capacity() < n)
+      {
+        sorted = storage.allocateInts(Math.max(n, 1));
+        sortedCoords = storage.allocateFloats(Math.max(n, 1) * 3);
+      }
+    }
+  }
+  private transient FnScratch spareScratch;
+  private static final Object scratchLock = new Object(); // (Not this KnotData - the builder thread mustn't wait on whoever's waiting for it)
+  private FnScratch takeScratch()
+  {
+    synchronized(scratchLock)
+    {
+      FnScratch ret = (spareScratch==null) ? new FnScratch() : spareScratch;
+      spareScratch = null;
+      return ret;
+    }
+  }
+  private void giveBackScratch(FnScratch scratch)
+  {
+    synchronized(scratchLock)
+    {
+      spareScratch = scratch;
+    }
+  }
+
+  // Builds a fresh neighbour table for the atoms at the given packed positions, in strands starting at starts.
+  // Instead of comparing every atom against every other, the atoms are bucketed into a spatial hash of
+  // cubic cells one neighbourhood-distance wide, so each atom only gets compared against the atoms in the
+  // 27 cells around it. Hash collisions only add candidates, which the distance test then throws away.
+  // The whole thing is linear in the number of atoms, so it's cheap enough to call after every resample.
+  // It only reads its arguments (and uses the storage just to allocate), so it can run on another thread
+  // (see startNeighbourBuild()).
+  //
+  // DomainWorker holds only some of the atoms, so it uses the general form: every atom in coords gets searched,
+  // but only the first numListed get a row in the table, and ids gives each atom's number in the whole knot
+  // (which is what starts and skipped go by). KnotData lists them all, numbered as they are.
+  private static NeighbourTable buildNeighbourTable(KnotStorage storage, int[] starts, FloatBuffer coords, float R, float E, int skipped, FnScratch scratch)
+  {
+    return buildNeighbourTable(storage, starts, coords, starts[starts.length-1], null, R, E, skipped, scratch);
+  }
+  static NeighbourTable buildNeighbourTable(KnotStorage storage, int[] starts, FloatBuffer coords, int numListed, int[] ids, float R, float E, int skipped, FnScratch scratch)
+  {
     float R2plusE = R * 2 + E;
-    for(i=0; i<strands.size(); i++)
+    float cutoff2 = R2plusE * R2plusE;
+    int n = coords.capacity() / 3;
+
+    int tableSize = 1;
+    while(tableSize < n*2)
+      tableSize <<= 1;
+    int mask = tableSize - 1;
+    scratch.ensure(storage, n, tableSize);
+    IntBuffer cellStart = scratch.cellStart, stamp = scratch.stamp, sorted = scratch.sorted;
+    FloatBuffer sc = scratch.sortedCoords;
+
+    // Counting-sort the atoms by hash cell, with copies of their positions in sorted order, so the
+    // candidates in a cell are next to each other in memory. (stamp doubles up as the fill cursor.)
+    int h, a, b, k, m;
+    for(h=0; h<=tableSize; h++)
+      cellStart.put(h, 0);
+    for(h=0; h<tableSize; h++)
+      stamp.put(h, 0);
+    for(a=0; a<n; a++)
     {
-      curStr = get(i);
-      curNn  = (Vector[])nn.get(i);
-      for(j=0; j<curStr.length; j++)
+      h = cell(coords, a, R2plusE) & mask;
+      cellStart.put(h+1, cellStart.get(h+1) + 1);
+    }
+    for(h=0; h<tableSize; h++)
+      cellStart.put(h+1, cellStart.get(h+1) + cellStart.get(h));
+    for(a=0; a<n; a++)
+    {
+      h = cell(coords, a, R2plusE) & mask;
+      k = cellStart.get(h) + stamp.get(h);
+      stamp.put(h, stamp.get(h) + 1);
+      sorted.put(k, a);
+      sc.put(k*3,   coords.get(a*3));
+      sc.put(k*3+1, coords.get(a*3+1));
+      sc.put(k*3+2, coords.get(a*3+2));
+    }
+    for(h=0; h<tableSize; h++)
+      stamp.put(h, 0);
+
+    // Go through the atoms in strand order - consecutive atoms are next to each other in space, so the
+    // cells being searched stay in the cache - adding each atom's neighbours to the table as we go
+    NeighbourTable table = new NeighbourTable(storage, numListed);
+    int[] rangeFrom = new int[27], rangeTo = new int[27]; // Runs of sorted to search for the current atom
+    int numRanges = 0, cellsSeen = 0, strand = 0; // (stamp marks the slots already searched, as neighbouring cells can collide)
+    int cx, cy, cz, lastX = 0, lastY = 0, lastZ = 0, ga, gb;
+    float dx, dy, dz, ax, ay, az;
+    for(a=0; a<numListed; a++)
+    {
+      ga = (ids==null) ? a : ids[a];
+      if(ids!=null)
+        strand = strandOf(starts, ga);
+      else
+        while(a >= starts[strand+1])
+          strand++;
+      ax = coords.get(a*3);
+      ay = coords.get(a*3+1);
+      az = coords.get(a*3+2);
+      cx = (int)Math.floor(ax / R2plusE);
+      cy = (int)Math.floor(ay / R2plusE);
+      cz = (int)Math.floor(az / R2plusE);
+      if(a==0 || cx!=lastX || cy!=lastY || cz!=lastZ) // Same cell as the previous atom means the same slots to search
       {
-        // Empty out the vector which contains our nearest neighbours
-        curNn[j] = new Vector();
-        // Iterate through the strands and through the strand atoms and find the distance
-        for(k=0; k<strands.size(); k++)
+        lastX = cx;
+        lastY = cy;
+        lastZ = cz;
+        numRanges = 0;
+        cellsSeen++;
+        for(int ox=-1; ox<=1; ox++)
+        for(int oy=-1; oy<=1; oy++)
+        for(int oz=-1; oz<=1; oz++)
         {
-          curStr2 = get(k);
-          for(l=0; l<curStr2.length; l++)
+          h = cellHash(lastX+ox, lastY+oy, lastZ+oz) & mask;
+          if(stamp.get(h)==cellsSeen)
+            continue;
+          stamp.put(h, cellsSeen);
+          if(numRanges>0 && rangeTo[numRanges-1]==cellStart.get(h)) // Carries straight on from the last run (the z neighbours usually do)
+            rangeTo[numRanges-1] = cellStart.get(h+1);
+          else if(cellStart.get(h)<cellStart.get(h+1))
           {
-            if(i==k && Math.abs(j-l)<skipped) continue; // We don't worry about things that are very close along the same string
-            dx = curStr[j].x - curStr2[l].x;
-            dy = curStr[j].y - curStr2[l].y;
-            dz = curStr[j].z - curStr2[l].z;
-            if(Math.sqrt(dx*dx + dy*dy + dz*dz) < R2plusE) // If distance is small enough...
-              curNn[j].add(curStr2[l]);                    // ...add KnotAtom reference to our nn list
+            rangeFrom[numRanges] = cellStart.get(h);
+            rangeTo[numRanges++] = cellStart.get(h+1);
+          }
+        }
+      }
+      table.startAtom(a);
+      for(m=0; m<numRanges; m++)
+      {
+        for(k=rangeFrom[m]; k<rangeTo[m]; k++)
+        {
+          dx = ax - sc.get(k*3);
+          dy = ay - sc.get(k*3+1);
+          dz = az - sc.get(k*3+2);
+          if(dx*dx + dy*dy + dz*dz < cutoff2) // If distance is small enough...
+          {
+            b = sorted.get(k);
+            gb = (ids==null) ? b : ids[b];
+            if(Math.abs(ga-gb)<skipped && gb>=starts[strand] && gb<starts[strand+1]) continue; // We don't worry about things that are very close along the same string
+            table.add(b);             // ...add it to our nn list
           }
         }
       }
     }
-  } // End of synchronized public void findNeighboursFN()
+    table.finish();
+    return table;
+  } // End of buildNeighbourTable()
+
+  static int strandOf(int[] starts, int atomNum) // Which strand the atom's in, with strands starting at starts (some may be empty)
+  {
+    int lo = 0, hi = starts.length - 2;
+    while(lo < hi)
+    {
+      int mid = (lo + hi + 1) >>> 1;
+      if(starts[mid] <= atomNum)
+        lo = mid;
+      else
+        hi = mid - 1;
+    }
+    return lo;
+  }
+
+  private static int cell(FloatBuffer coords, int a, float size)
+  {
+    return cellHash((int)Math.floor(coords.get(a*3) / size), (int)Math.floor(coords.get(a*3+1) / size), (int)Math.floor(coords.get(a*3+2) / size));
+  }
+  static int cellHash(int x, int y, int z) // Also used by DomainWorker
+  {
+    return ((x * 73856093) ^ (y * 19349663)) + z; // Cells next to each other in z get slots next to each other, which is kinder to the cache
+  }
+
 
 
   // The removeOverlapsRO function(s) return true if any overlaps were found, false otherwise
@@ -262,6 +952,7 @@ public class KnotData implements Serializable, Cloneable
   }
   public boolean removeOverlapsRO(float radius, float delta)
   {
+    currentMetrics().overlapPassStarted();
     boolean ret = false;
     for(int i=0; i<numStrands(); i++)
       ret |= removeOverlapsRO(i, radius, delta);
@@ -269,32 +960,48 @@ public class KnotData implements Serializable, Cloneable
   }
   public boolean removeOverlapsRO(int strandNum, float radius, float delta)
   {
-    return removeOverlapsRO(strandNum, radius, delta, (int)Math.floor(Math.random() * get(strandNum).length), Math.random()>=0.5);
+    SplittableRandom r = random();
+    return removeOverlapsRO(strandNum, radius, delta, r.nextInt(Math.max(strandLength(strandNum), 1)), r.nextBoolean());
   }
   synchronized public boolean removeOverlapsRO(int strandNum, float radius, float delta, int startAt, boolean goUpwards)
   {
 //    algoProgress.append("-removeOverlapsRO("+strandNum+", "+radius+", "+delta+", "+startAt+", "+goUpwards+")");
+    double[] stats = {Float.POSITIVE_INFINITY, 0.0};
+    boolean ret = removeOverlaps(storage, nn, storage.strandStart(strandNum), strandLength(strandNum), startAt, goUpwards, radius, delta, storage.numAtoms(), stats);
+//    algoProgress.append(" - returns "+ret+"\n");
+    currentMetrics().overlapsDone(strandNum, (float)stats[RO_MIN_D2], stats[RO_SUM_SQ]);
+    return ret;
+  } // End of synchronized public boolean removeOverlapsRO(int strandNum, float radius, float delta, int startAt, boolean goUpwards)
+
+  // RO's sweep over the numAtoms atoms from first on, starting startAt atoms in and going round in the direction given,
+  // pushing apart any that overlap a neighbour in the table. Only atoms numbered below numMovable get moved - an overlap
+  // with any other atom (one of DomainWorker's ghosts) only moves the atom being swept. Returns true if it found any
+  // overlaps, and adds to stats: the smallest squared distance seen (at RO_MIN_D2) and the sum of the squared moves.
+  static final int RO_MIN_D2 = 0, RO_SUM_SQ = 1;
+  static boolean removeOverlaps(KnotStorage atoms, NeighbourTable table, int first, int numAtoms, int startAt, boolean goUpwards, float radius, float delta, int numMovable, double[] stats)
+  {
     boolean ret = false;
-    curStr = get(strandNum);
-    Vector[] curNn = (Vector[])(nn.get(strandNum));
-    Iterator iter;
-    KnotAtom neighbour;
+    int a, b;
     float dx, dy, dz, d, ex, ey, ez, ddOver2;
     float R2 = radius * 2;
     float R2plusDelta = 2 * radius + delta;
+    float minD2 = Float.POSITIVE_INFINITY; // For the metrics
+    double sumSq = 0.0;
     int i = startAt;
-    for(int j=0; j<curStr.length; j++)
+    for(int j=0; j<numAtoms; j++)
     {
       // Check if the current node is actually overlapping with any of the nodes it its "nn" list
-      iter = curNn[i].iterator();
-      while(iter.hasNext())
+      a = first + i;
+      for(long k=table.start(a); k<table.start(a+1); k++)
       {
-        neighbour = (KnotAtom)iter.next();
+        b = table.get(k);
         // Find distance
-        dx = curStr[i].x - neighbour.x;
-        dy = curStr[i].y - neighbour.y;
-        dz = curStr[i].z - neighbour.z;
+        dx = atoms.getX(a) - atoms.getX(b);
+        dy = atoms.getY(a) - atoms.getY(b);
+        dz = atoms.getZ(a) - atoms.getZ(b);
         d = dx*dx + dy*dy + dz*dz;
+        if(d < minD2)
+          minD2 = d;
         if(d==0)
           d=0.000001f;
         if(d < R2)             // If there is a true overlap then remedy it
@@ -304,60 +1011,298 @@ public class KnotData implements Serializable, Cloneable
           ey = dy/d;
           ez = dz/d;
           ddOver2 = (R2plusDelta - d)/2;
-          curStr[i].x -= ddOver2 * ex;
-          curStr[i].y -= ddOver2 * ey;
-          curStr[i].z -= ddOver2 * ez;
-          neighbour.x += ddOver2 * ex;
-          neighbour.y += ddOver2 * ey;
-          neighbour.z += ddOver2 * ez;
+          atoms.move(a, -ddOver2 * ex, -ddOver2 * ey, -ddOver2 * ez);
+          if(b < numMovable)
+          {
+            atoms.move(b, ddOver2 * ex, ddOver2 * ey, ddOver2 * ez);
+            sumSq += 2 * ddOver2 * ddOver2 * (ex*ex + ey*ey + ez*ez);
+          }
+          else
+            sumSq += ddOver2 * ddOver2 * (ex*ex + ey*ey + ez*ez);
         }
       }
       
       // Iterate up or down, depending on the chosen direction
-      if(goUpwards) i=i++; else i--;
+      if(goUpwards) i++; else i--;
       // Wraparound
       if(i == -1)
-        i = curStr.length-1;
-      else if(i>=curStr.length)
+        i = numAtoms-1;
+      else if(i>=numAtoms)
         i = 0;
     }
-//    algoProgress.append(" - returns "+ret+"\n");
+    stats[RO_MIN_D2] = Math.min(stats[RO_MIN_D2], minD2);
+    stats[RO_SUM_SQ] += sumSq;
     return ret;
-  } // End of synchronized public boolean removeOverlapsRO(int strandNum, float radius, float delta, int startAt, boolean goUpwards)
+  } // End of removeOverlaps()
 
   synchronized public void applyForces()
   {
 //    algoProgress.append("-applyForces()");
-    Iterator iter = strands.iterator();
-    while(iter.hasNext())
-    {
-      curStr = (KnotAtom[])iter.next();
-      for(int i=0; i<curStr.length; i++)
-      {
-        curStr[i].x += curStr[i].xf;
-        curStr[i].y += curStr[i].yf;
-        curStr[i].z += curStr[i].zf;
-      }
-    }
+    double[] sumSq = new double[numStrands()];
+    for(int k=0; k<forceTerms.size(); k++)
+      forceTerms.get(k).apply(iterationsSoFar, sumSq);
+    for(int j=0; j<sumSq.length; j++)
+      currentMetrics().forcesDone(j, sumSq[j]);
+  }
+
+  // The knot starts off with a single AtomForces term, which applies the per-atom forces from the knot file
+  synchronized public void addForceTerm(ForceTerm term)
+  {
+    term.bind(this);
+    forceTerms.add(term);
+  }
+  synchronized public boolean removeForceTerm(ForceTerm term)
+  {
+    return forceTerms.remove(term);
+  }
+  synchronized public void clearForceTerms()
+  {
+    forceTerms.clear();
+  }
+  public int numForceTerms()
+  {
+    return forceTerms.size();
+  }
+  public ForceTerm getForceTerm(int termNum)
+  {
+    return forceTerms.get(termNum);
+  }
+  // The force terms need telling whenever the atoms get replaced. (Also call this after changing any KnotAtom's xf, yf or zf.)
+  synchronized public void rebindForceTerms()
+  {
+    for(int k=0; k<forceTerms.size(); k++)
+      forceTerms.get(k).bind(this);
   }
 
   private int iterationsSoFar = 0;
+  private KnotMetrics metrics, lastMetrics; // The iteration in progress, and the last one finished
+  private ConvergenceDetector detector;
+  private boolean converged = false;
+
   public void iterate()
   {
 //    algoProgress.append("ITERATION "+iterationsSoFar+":\n");
-    if((iterationsSoFar % 200) == 0)
-      findNeighboursFN();
+    long started = (tuner==null) ? 0 : System.nanoTime();
+    NeighbourTable oldNn = nn;
+    float oldEta = tableEta;
+    int oldInterval = tableInterval;
+    if(pendingCoords!=null && iterationsSoFar >= pendingSwapAt)
+    {
+      swapInNeighbours();
+      if(tuner!=null)
+        tune(oldNn, oldEta, oldInterval, pendingNanos + System.nanoTime() - started);
+      oldNn = nn;
+      oldEta = tableEta;
+      oldInterval = tableInterval;
+    }
+    if(iterationsSoFar >= nextRebuildAt)
+    {
+      nextRebuildAt = iterationsSoFar + rebuildInterval;
+      if(pipelineLag > 0 && iterationsSoFar > 0) // (The very first table has to be there straight away)
+      {
+        long startedBuild = (tuner==null) ? 0 : System.nanoTime();
+        startNeighbourBuild();
+        if(tuner!=null)
+          pendingNanos = System.nanoTime() - startedBuild;
+      }
+      else
+      {
+        long startedBuild = (tuner==null) ? 0 : System.nanoTime();
+        findNeighboursFN();
+        if(tuner!=null)
+          tune(oldNn, oldEta, oldInterval, System.nanoTime() - startedBuild);
+      }
+    }
+    metrics = new KnotMetrics(iterationsSoFar, numStrands(), getContactDistance());
+    random = new SplittableRandom(iterationSeed(randomSeed, iterationsSoFar));
     iterationsSoFar++;
  
     // SONO = Shrink On No Overlap - therefore keep runnning RO until we have no overlaps, then run CL
+    started = (tuner==null) ? 0 : System.nanoTime();
     while(removeOverlapsRO())
     {
     }
+    if(tuner!=null)
+    {
+      tuneRoNanos += System.nanoTime() - started;
+      tuneIterations++;
+    }
     controlLeashesCL();
 
     // This stuff concerning forces (like a little motor inside each atom) is not in SONO. I added it.
     applyForces();
     
+    lastMetrics = metrics;
+    metrics = null;
+    if(detector!=null && detector.hasConverged(lastMetrics))
+      converged = true;
+  }
+
+  private int nextRebuildAt = 0;
+
+  // Tuning of etaParameter and rebuildInterval (see NeighbourTuner)
+  private NeighbourTuner tuner;
+  private long tuneRebuildNanos, tuneRoNanos; // Time spent since the last table went in
+  private int  tuneIterations;
+
+  // null switches the tuning off, leaving eta and the interval where the tuner last put them
+  public void setNeighbourTuner(NeighbourTuner tuner)
+  {
+    this.tuner = tuner;
+    tuneRebuildNanos = tuneRoNanos = 0;
+    tuneIterations = 0;
+    valuesChanged();
+  }
+  // Tells the tuner which eta and interval the periods it gets shown from now on are heading for - it only
+  // judges a period whose table was built with those
+  private void valuesChanged()
+  {
+    if(tuner!=null)
+      tuner.valuesApplied(etaParameter, rebuildInterval);
+  }
+  public NeighbourTuner getNeighbourTuner()
+  {
+    return tuner;
+  }
+
+  // Called from iterate() as each new table goes in, with the one it replaced and what that one was built with - the
+  // figures since the last call are all for that table's time in use. buildNanos is what the new table cost to build,
+  // which gets counted against the new table's time.
+  private void tune(NeighbourTable oldNn, float oldEta, int oldInterval, long buildNanos)
+  {
+    if(tuneIterations>0) // (Otherwise there's nothing to go on yet)
+    {
+      int missed = countMissedOverlaps(oldNn);
+      if(tuner.rebuildDone(oldEta, oldInterval, tuneIterations, tuneRebuildNanos, tuneRoNanos, missed))
+      {
+        algoProgress.append("Neighbour tuning at iteration " + iterationsSoFar + ": " + (tuneRebuildNanos + tuneRoNanos) / tuneIterations / 1000
+                            + " us per iteration with eta " + oldEta + " and rebuild interval " + oldInterval + ", " + numNeighbourPairs()
+                            + " neighbours, " + missed + " missed overlaps - eta now " + tuner.getEta() + ", rebuild interval " + tuner.getInterval() + "\n");
+        etaParameter = tuner.getEta(); // Takes effect at the next rebuild
+        rebuildInterval = tuner.getInterval();
+        if(pipelineLag > 0) // The pipeline needs at least one iteration between starting a build and swapping it in
+          rebuildInterval = Math.max(rebuildInterval, 2);
+        tableInterval = rebuildInterval; // The new table's time in use is counted from when its build started, as usual
+        nextRebuildAt = tableStartedAt + rebuildInterval;
+        valuesChanged();
+      }
+    }
+    tuneRebuildNanos = buildNanos;
+    tuneRoNanos = 0;
+    tuneIterations = 0;
+  }
+
+  // How many overlapping pairs the new table has which the old table didn't - RO couldn't have seen those
+  private int countMissedOverlaps(NeighbourTable oldNn)
+  {
+    if(oldNn==null || oldNn.numAtoms()!=nn.numAtoms())
+      return 0;
+    int ret = 0, b;
+    float R2 = atomRadius * 2;
+    float dx, dy, dz;
+    for(int a=0; a<nn.numAtoms(); a++)
+      for(long k=nn.start(a); k<nn.start(a+1); k++)
+      {
+        b = nn.get(k);
+        dx = storage.getX(a) - storage.getX(b);
+        dy = storage.getY(a) - storage.getY(b);
+        dz = storage.getZ(a) - storage.getZ(b);
+        if(dx*dx + dy*dy + dz*dz >= R2) // Same test as RO
+          continue;
+        boolean seen = false;
+        for(long m=oldNn.start(a); m<oldNn.start(a+1) && !seen; m++)
+          seen = (oldNn.get(m)==b);
+        if(!seen)
+          ret++;
+      }
+    return ret;
+  }
+
+  public long numNeighbourPairs() // Total length of the neighbour lists (each pair counts twice)
+  {
+    return nn.size();
+  }
+
+  public int getRebuildInterval()
+  {
+    return rebuildInterval;
+  }
+  synchronized public void setRebuildInterval(int rebuildInterval)
+  {
+    if(rebuildInterval<1 || rebuildInterval<=pipelineLag)
+      throw new IllegalArgumentException("Illegal argument: KnotData.setRebuildInterval(" + rebuildInterval + ")");
+    this.rebuildInterval = rebuildInterval;
+    nextRebuildAt = Math.min(nextRebuildAt, iterationsSoFar + rebuildInterval);
+    valuesChanged();
+  }
+
+  // Iterates until the convergence detector is happy, or maxIterations is reached. Returns the number of iterations done.
+  public int iterateUntilConverged(int maxIterations)
+  {
+    int ret = 0;
+    while(ret < maxIterations && !converged)
+    {
+      iterate();
+      ret++;
+    }
+    return ret;
+  }
+
+  // Every KnotData has its own random stream, so simulations running side by side don't share (or fight over) one
+  private SplittableRandom random()
+  {
+    if(random==null)
+      random = new SplittableRandom(iterationSeed(randomSeed, iterationsSoFar));
+    return random;
+  }
+  static long iterationSeed(long seed, int iteration) // Scrambles the two together (MurmurHash3's finaliser). Also used by DomainWorker
+  {
+    long z = seed ^ (iteration * 0x9E3779B97F4A7C15L);
+    z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+    z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+    return z ^ (z >>> 33);
+  }
+
+  public long getRandomSeed()
+  {
+    return randomSeed;
+  }
+  public void setRandomSeed(long randomSeed)
+  {
+    this.randomSeed = randomSeed;
+    random = null;
+  }
+
+  private KnotMetrics currentMetrics() // CL, RO etc can be called on their own, outside of iterate()
+  {
+    if(metrics==null)
+      metrics = new KnotMetrics(iterationsSoFar, numStrands(), getContactDistance());
+    return metrics;
+  }
+
+  public KnotMetrics getMetrics() // The metrics for the last iteration finished (null if there hasn't been one)
+  {
+    return lastMetrics;
+  }
+
+  public void setConvergenceDetector(ConvergenceDetector detector)
+  {
+    this.detector = detector;
+    resetConvergence();
+  }
+  public ConvergenceDetector getConvergenceDetector()
+  {
+    return detector;
+  }
+  public boolean hasConverged()
+  {
+    return converged;
+  }
+  private void resetConvergence() // Called when the knot changes under the detector's feet
+  {
+    converged = false;
+    if(detector!=null)
+      detector.reset();
   }
 
   public String getAlgoProgress()
@@ -373,6 +1318,69 @@ public class KnotData implements Serializable, Cloneable
   {
     return atomRadius;
   }
+  // The distance at which RO counts two atoms as overlapping, i.e. the tube's diameter. RO compares the *squared*
+  // distance with twice the radius, so that's the square root of twice the radius - not twice the radius.
+  public float getContactDistance()
+  {
+    return contactDistance(atomRadius);
+  }
+  public static float contactDistance(float atomRadius)
+  {
+    return (float)Math.sqrt(atomRadius * 2);
+  }
+  public float getLeashLength()
+  {
+    return leashLength;
+  }
+  public float getDeltaParameter()
+  {
+    return deltaParameter;
+  }
+  public float getEtaParameter()
+  {
+    return etaParameter;
+  }
+  public int getSkippedParameter()
+  {
+    return skippedParameter;
+  }
+  // Changing the parameters does not refresh the neighbour lists - call findNeighboursFN() (or interpolate()/rethread(), which do so) afterwards
+  synchronized public void setParameters(float atomRadius, float leashLength, float deltaParameter, float etaParameter, int skippedParameter)
+  {
+    this.atomRadius = atomRadius;
+    this.leashLength = leashLength;
+    this.deltaParameter = deltaParameter;
+    this.etaParameter = etaParameter;
+    this.skippedParameter = skippedParameter;
+    cancelNeighbourBuild();
+    valuesChanged();
+  }
+
+  public int getIterationsSoFar()
+  {
+    return iterationsSoFar;
+  }
+
+  public int numAtoms()
+  {
+    return storage.numAtoms();
+  }
+
+  // Copies every atom's position, strand after strand, into buf as packed x,y,z triples.
+  // If buf is null or the wrong size a new array gets allocated (and returned).
+  synchronized public float[] getCoordinates(float[] buf)
+  {
+    int n = numAtoms();
+    if(buf==null || buf.length != n*3)
+      buf = new float[n*3];
+    for(int a=0; a<n; a++)
+    {
+      buf[a*3]   = storage.getX(a);
+      buf[a*3+1] = storage.getY(a);
+      buf[a*3+2] = storage.getZ(a);
+    }
+    return buf;
+  }
 
   public KnotData getCopy()
   {
@@ -388,7 +1396,7 @@ public class KnotData implements Serializable, Cloneable
   
   synchronized public void interpolate()  // Inserts an atom imbetween each atom in a strand
   {
-    nn = new Vector(1,1);
+    needHeap("interpolate");
     for(int i=0; i<strands.size(); i++)
     {
       curStr = get(i);
@@ -406,70 +1414,262 @@ public class KnotData implements Serializable, Cloneable
                                        );
       }
       strands.setElementAt(newStr, i);
-      nn.add(new Vector[newStr.length]);
     }
     
+    ((HeapStorage)storage).reindex();
     findNeighboursFN();
+    resetConvergence();
+    rebindForceTerms();
   }
   
-  synchronized public void rethread() // Recreates the knot with correctly-spaced atoms along its path
+  synchronized public void decimate(int factor) // Keeps every factor-th atom (plus the end atoms) in each strand - the reverse of interpolate()
   {
-    nn = new Vector(1,1);
-    float dx, dy, dz, segmentlength, unitvecx, unitvecy, unitvecz;
-    KnotAtom[] newStr2;
+    needHeap("decimate");
+    if(factor < 2)
+      return;
     for(int i=0; i<strands.size(); i++)
     {
       curStr = get(i);
-      if(curStr.length < 2)
-        continue;
-      Vector newStr = new Vector();
-
-      int lowerpoint = 0;
-      float posonseg = 0.0f;
-      dx = curStr[0].x-curStr[1].x;
-      dy = curStr[0].y-curStr[1].y;
-      dz = curStr[0].z-curStr[1].z;
-      segmentlength = (float)Math.sqrt(dx*dx + dy*dy + dz*dz);
-      unitvecx = dx/segmentlength;
-      unitvecy = dy/segmentlength;
-      unitvecz = dz/segmentlength;
-      do
+      KnotAtom[] newStr = curStr;
+      if(curStr.length > 2)
       {
-        System.out.println("Strand "+i+": Adding a point between "+lowerpoint+" and "+(lowerpoint+1));
-        newStr.add(new KnotAtom(curStr[lowerpoint].x + posonseg * unitvecx,
-                                curStr[lowerpoint].y + posonseg * unitvecy,
-                                curStr[lowerpoint].z + posonseg * unitvecz ));
-        posonseg += leashLength;
-        if(posonseg >= segmentlength)
+        newStr = new KnotAtom[((curStr.length - 1 + factor - 1) / factor) + 1];
+        for(int j=0; j<newStr.length; j++)
         {
-          while(posonseg >= segmentlength)
-          {
-            posonseg -= segmentlength;
-            lowerpoint++;
-          }
-          if(lowerpoint>= curStr.length-1)
-            break;
-          dx = curStr[lowerpoint].x-curStr[lowerpoint+1].x;
-          dy = curStr[lowerpoint].y-curStr[lowerpoint+1].y;
-          dz = curStr[lowerpoint].z-curStr[lowerpoint+1].z;
-          segmentlength = (float)Math.sqrt(dx*dx + dy*dy + dz*dz);
-          unitvecx = dx/segmentlength;
-          unitvecy = dy/segmentlength;
-          unitvecz = dz/segmentlength;
+          KnotAtom src = curStr[Math.min(j*factor, curStr.length-1)];
+          newStr[j] = new KnotAtom(src.x, src.y, src.z, 0, 0, 0);
+        }
+        // The forces on dropped atoms get passed on to the nearest kept atom, so the total force is unchanged
+        for(int j=0; j<curStr.length; j++)
+        {
+          KnotAtom dest = (j == curStr.length-1) ? newStr[newStr.length-1] : newStr[Math.min((j + factor/2) / factor, newStr.length-1)];
+          dest.xf += curStr[j].xf;
+          dest.yf += curStr[j].yf;
+          dest.zf += curStr[j].zf;
         }
       }
-      while(true); //lowerpoint < (curStr.length-1));
-      
-      System.out.println("Finished a strand!");
+      strands.setElementAt(newStr, i);
+    }
+
+    ((HeapStorage)storage).reindex();
+    findNeighboursFN();
+    resetConvergence();
+    rebindForceTerms();
+  }
+
+  // Recreates the knot with correctly-spaced atoms along its path
+  public void rethread()
+  {
+    rethread(leashLength, false);
+  }
+  // Resamples each strand with evenly-spaced atoms no further than spacing apart, keeping the end atoms where they are.
+  // With spline set the new atoms follow a Catmull-Rom curve through the old ones rather than the straight segments.
+  synchronized public void rethread(float spacing, boolean spline)
+  {
+    needHeap("rethread");
+    if(!(spacing > 0.0f))
+      throw new IllegalArgumentException("Illegal argument: KnotData.rethread(" + spacing + ", " + spline + ")");
+    double[] lengths = strandLengths();
+    int[] counts = new int[lengths.length];
+    for(int i=0; i<counts.length; i++)
+      counts[i] = (int)Math.ceil(lengths[i] / spacing) + 1;
+    resample(counts, spline);
+  }
+  // Resamples the knot so that it has (roughly) totalAtoms atoms altogether, shared out between the strands by length
+  synchronized public void rethreadToCount(int totalAtoms, boolean spline)
+  {
+    needHeap("rethreadToCount");
+    double[] lengths = strandLengths();
+    double sum = 0.0;
+    for(int i=0; i<lengths.length; i++)
+      sum += lengths[i];
+    if(totalAtoms < 2*lengths.length || sum == 0.0)
+      throw new IllegalArgumentException("Illegal argument: KnotData.rethreadToCount(" + totalAtoms + ", " + spline + ")");
+    int[] counts = new int[lengths.length];
+    for(int i=0; i<counts.length; i++)
+      counts[i] = Math.max(2, (int)Math.round(totalAtoms * lengths[i] / sum));
+    resample(counts, spline);
+  }
 
-      newStr2 = new KnotAtom[newStr.size()];
-      for(int j=0; j<newStr.size(); j++)
-        newStr2[j] = (KnotAtom)(newStr.get(j));
+  private double[] strandLengths()
+  {
+    double[] ret = new double[numStrands()];
+    float dx, dy, dz;
+    for(int i=0; i<ret.length; i++)
+    {
+      KnotAtom[] str = get(i);
+      for(int j=1; j<str.length; j++)
+      {
+        dx = str[j].x - str[j-1].x;
+        dy = str[j].y - str[j-1].y;
+        dz = str[j].z - str[j-1].z;
+        ret[i] += Math.sqrt(dx*dx + dy*dy + dz*dz);
+      }
+    }
+    return ret;
+  }
+
+  private static final int PARALLEL_RESAMPLE_THRESHOLD = 50000; // Below this many atoms it's not worth starting threads
+  private static final int RESAMPLE_CHUNK = 32768; // New atoms per piece of work, when the work gets shared out
 
-      strands.setElementAt(newStr2, i);
-      nn.add(new Vector[newStr.size()]);
+  // The new atoms get worked out in pieces of up to RESAMPLE_CHUNK, so a single long strand gets shared out
+  // between the threads as well as separate strands. The neighbour lists are then rebuilt from scratch (every
+  // atom is new, so there's nothing to update) - for big knots that rebuild takes longer than the resampling.
+  private void resample(final int[] counts, final boolean spline)
+  {
+    final KnotAtom[][] oldStrs = snapshotStrands();
+    final KnotAtom[][] newStrs = new KnotAtom[oldStrs.length][];
+    final double[][] cums = new double[oldStrs.length][];
+    int numChunks = 0;
+    for(int i=0; i<oldStrs.length; i++)
+    {
+      cums[i] = arcLengths(oldStrs[i]);
+      if(oldStrs[i].length < 2 || counts[i] < 2 || cums[i][cums[i].length-1] == 0.0) // Nothing to follow - it stays as it is
+        newStrs[i] = oldStrs[i];
+      else
+      {
+        newStrs[i] = new KnotAtom[counts[i]];
+        numChunks += (counts[i] + RESAMPLE_CHUNK - 1) / RESAMPLE_CHUNK;
+      }
     }
-    
+    // Which strand, and which of its new atoms, each chunk covers
+    final int[] chunkStrand = new int[numChunks], chunkFrom = new int[numChunks], chunkTo = new int[numChunks];
+    numChunks = 0;
+    for(int i=0; i<oldStrs.length; i++)
+      if(newStrs[i] != oldStrs[i])
+        for(int from=0; from<counts[i]; from+=RESAMPLE_CHUNK)
+        {
+          chunkStrand[numChunks] = i;
+          chunkFrom[numChunks] = from;
+          chunkTo[numChunks++] = Math.min(from + RESAMPLE_CHUNK, counts[i]);
+        }
+
+    int numThreads = Math.min(Runtime.getRuntime().availableProcessors(), numChunks);
+    if(numAtoms() < PARALLEL_RESAMPLE_THRESHOLD || numThreads < 2)
+    {
+      for(int c=0; c<numChunks; c++)
+        resampleChunk(oldStrs[chunkStrand[c]], cums[chunkStrand[c]], newStrs[chunkStrand[c]], chunkFrom[c], chunkTo[c], spline);
+    }
+    else
+    {
+      final java.util.concurrent.atomic.AtomicInteger nextChunk = new java.util.concurrent.atomic.AtomicInteger();
+      final int totalChunks = numChunks;
+      Thread[] workers = new Thread[numThreads];
+      for(int i=0; i<workers.length; i++)
+      {
+        workers[i] = new Thread(new Runnable(){
+                                  public void run()
+                                  {
+                                    int c;
+                                    while((c = nextChunk.getAndIncrement()) < totalChunks)
+                                      resampleChunk(oldStrs[chunkStrand[c]], cums[chunkStrand[c]], newStrs[chunkStrand[c]], chunkFrom[c], chunkTo[c], spline);
+                                  }});
+        workers[i].start();
+      }
+      boolean interrupted = false;
+      for(int i=0; i<workers.length; i++)
+      {
+        try
+        {
+          workers[i].join();
+        }
+        catch(InterruptedException e)
+        {
+          interrupted = true;
+          i--; // Keep waiting - the strands must all be finished before we carry on
+        }
+      }
+      if(interrupted) // Pass it on to whoever asked for the rethread
+        Thread.currentThread().interrupt();
+    }
+
+    for(int i=0; i<newStrs.length; i++)
+    {
+      if(newStrs[i] != oldStrs[i])
+        handOnForces(oldStrs[i], cums[i], newStrs[i]);
+      strands.setElementAt(newStrs[i], i);
+    }
+
+    ((HeapStorage)storage).reindex();
     findNeighboursFN();
+    resetConvergence();
+    rebindForceTerms();
+  } // End of resample()
+
+  // The arc length along the strand up to each atom, as a prefix sum
+  private static double[] arcLengths(KnotAtom[] src)
+  {
+    double[] cum = new double[Math.max(src.length, 1)];
+    float dx, dy, dz;
+    for(int k=1; k<src.length; k++)
+    {
+      dx = src[k].x - src[k-1].x;
+      dy = src[k].y - src[k-1].y;
+      dz = src[k].z - src[k-1].z;
+      cum[k] = cum[k-1] + Math.sqrt(dx*dx + dy*dy + dz*dz);
+    }
+    return cum;
+  }
+
+  // Works out new atoms from up to (but not including) to, evenly spaced along src by arc length. Each new atom
+  // just walks forward to the segment it falls on, from where the chunk's first atom was found by a binary search.
+  // Zero-length segments (repeated points) get walked straight past.
+  private void resampleChunk(KnotAtom[] src, double[] cum, KnotAtom[] dest, int from, int to, boolean spline)
+  {
+    int n = src.length, count = dest.length;
+    double total = cum[n-1];
+    double s = total * from / (count-1);
+    int seg = Arrays.binarySearch(cum, s);
+    seg = (seg < 0) ? -seg - 2 : seg;
+    seg = Math.max(0, Math.min(seg, n-2));
+    while(seg > 0 && cum[seg] >= s) // (A run of repeated points all share the same arc length)
+      seg--;
+    double len;
+    float t, x, y, z;
+    KnotAtom p0, p1, p2, p3;
+    for(int j=from; j<to; j++)
+    {
+      s = total * j / (count-1);
+      while(seg < n-2 && cum[seg+1] <= s)
+        seg++;
+      len = cum[seg+1] - cum[seg];
+      t = (len > 0.0) ? (float)Math.min(Math.max((s - cum[seg]) / len, 0.0), 1.0) : 0.0f;
+      p1 = src[seg];
+      p2 = src[seg+1];
+      if(spline)
+      {
+        p0 = src[Math.max(seg-1, 0)];
+        p3 = src[Math.min(seg+2, n-1)];
+        x = catmullRom(p0.x, p1.x, p2.x, p3.x, t);
+        y = catmullRom(p0.y, p1.y, p2.y, p3.y, t);
+        z = catmullRom(p0.z, p1.z, p2.z, p3.z, t);
+      }
+      else
+      {
+        x = p1.x + t * (p2.x - p1.x);
+        y = p1.y + t * (p2.y - p1.y);
+        z = p1.z + t * (p2.z - p1.z);
+      }
+      dest[j] = new KnotAtom(x, y, z, 0, 0, 0);
+    }
+  } // End of resampleChunk()
+
+  // Each old atom's force is handed on to the new atom nearest to it along the strand, so the total force is unchanged
+  private static void handOnForces(KnotAtom[] src, double[] cum, KnotAtom[] dest)
+  {
+    double total = cum[src.length-1];
+    int j;
+    for(int k=0; k<src.length; k++)
+    {
+      j = (int)Math.round(cum[k] / total * (dest.length-1));
+      dest[j].xf += src[k].xf;
+      dest[j].yf += src[k].yf;
+      dest[j].zf += src[k].zf;
+    }
+  }
+
+  private static float catmullRom(float p0, float p1, float p2, float p3, float t)
+  {
+    return 0.5f * ((2*p1) + (p2 - p0) * t + (2*p0 - 5*p1 + 4*p2 - p3) * t * t + (3*p1 - p0 - 3*p2 + p3) * t * t * t);
   }
 }
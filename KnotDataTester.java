@@ -20,13 +20,16 @@ import java.io.*;
 public class KnotDataTester
 {
   private static String filePath="KnotDataTest01";
+  private static int maxIterations=1;
   public static void main(String[] args)
   {
-    if(args.length==1)
+    if(args.length>=1)
       filePath = args[0];
-    else if(args.length>1)
+    if(args.length==2)
+      maxIterations = Integer.parseInt(args[1]);
+    else if(args.length>2)
     {
-      System.out.println("Only one argument please: the data file path");
+      System.out.println("Two arguments at most please: the data file path, and the most iterations to run (until convergence)");
       System.exit(1);
     }
     
@@ -36,9 +39,13 @@ public class KnotDataTester
       KnotData kd = new KnotData(fis);
       
       System.out.println(kd);
-      kd.iterate();
+      if(maxIterations > 1)
+        kd.setConvergenceDetector(new PlateauDetector(KnotMetrics.RMS_DISPLACEMENT, 50, 0.05f));
+      int done = kd.iterateUntilConverged(maxIterations);
       System.out.println(kd.getAlgoProgress());
       System.out.println(kd);
+      System.out.println("Ran " + done + " iterations" + (kd.hasConverged() ? " (converged)" : ""));
+      System.out.println(kd.getMetrics());
     }
     catch(IOException e)
     {
@@ -19,6 +19,7 @@ import javax.swing.*;
 import java.awt.*;
 import javax.swing.event.*;
 import java.awt.event.*;
+import java.awt.image.*;
 
 public class KnotDataViewer extends JComponent
 {
@@ -64,11 +65,14 @@ public class KnotDataViewer extends JComponent
   }
 
   public void update(KnotData kd)
+  {
+    update(new KnotFrame(kd));
+  }
+  public void update(KnotFrame frame)
   {
     // Determine the necessary size of the x,y,z arrays
-    int totalAtoms = 0;
-    for(int i=0; i<kd.numStrands(); i++)
-      totalAtoms += kd.get(i).length;
+    int totalAtoms = frame.numAtoms();
+    float[] coords = frame.getCoordinates();
     x = new float[totalAtoms];
     y = new float[totalAtoms];
     z = new float[totalAtoms];
@@ -76,35 +80,28 @@ public class KnotDataViewer extends JComponent
     yr = new int[totalAtoms];
     zr = new int[totalAtoms];
 
-    radius = kd.getAtomRadius();
+    radius = frame.getAtomRadius();
 
-    KnotData.KnotAtom curAtom;
-    if(kd.numStrands()>0)
+    if(totalAtoms>0)
     {
-      curAtom = kd.get(0,0);
-
       // Initialise the min/max monitors
-      xmin = xmax = curAtom.x;
-      ymin = ymax = curAtom.y;
-      zmin = zmax = curAtom.z;
+      xmin = xmax = coords[0];
+      ymin = ymax = coords[1];
+      zmin = zmax = coords[2];
     }
 
-    int count=0;
-    for(int i=0; i<kd.numStrands(); i++)
-      for(int j=0; j<kd.get(i).length; j++)
-      {
-        curAtom = kd.get(i, j);
-        x[count] = curAtom.x;
-        y[count] = curAtom.y;
-        z[count] = curAtom.z;
-        if(curAtom.x>xmax) xmax = curAtom.x;
-        if(curAtom.x<xmin) xmin = curAtom.x;
-        if(curAtom.y>ymax) ymax = curAtom.y;
-        if(curAtom.y<ymin) ymin = curAtom.y;
-        if(curAtom.z>zmax) zmax = curAtom.z;
-        if(curAtom.z<zmin) zmin = curAtom.z;
-        count++;
-      }
+    for(int count=0; count<totalAtoms; count++)
+    {
+      x[count] = coords[count*3];
+      y[count] = coords[count*3+1];
+      z[count] = coords[count*3+2];
+      if(x[count]>xmax) xmax = x[count];
+      if(x[count]<xmin) xmin = x[count];
+      if(y[count]>ymax) ymax = y[count];
+      if(y[count]<ymin) ymin = y[count];
+      if(z[count]>zmax) zmax = z[count];
+      if(z[count]<zmin) zmin = z[count];
+    }
 
     // Now alter xmax, ymax, xmin, ymin so that they end up giving a wider scope than they would
     float extrax = xmax-xmin/10;
@@ -207,7 +204,10 @@ public class KnotDataViewer extends JComponent
 
   public void paint(Graphics g)
   {
-	Graphics2D g2D = (Graphics2D)g;
+    paintKnot((Graphics2D)g);
+  }
+  public void paintKnot(Graphics2D g2D)
+  {
     g2D.setPaint(Color.black);
     g2D.fillRect(0,0,width-1, height-1);
 
@@ -219,5 +219,15 @@ public class KnotDataViewer extends JComponent
     g2D.setPaint(Color.red);
     g2D.drawRect(0,0,width-1, height-1);
   } // End of: paint()
+
+  // Draws the knot into a new image, the same as it would appear on screen - works headless too
+  public BufferedImage render()
+  {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g2D = image.createGraphics();
+    paintKnot(g2D);
+    g2D.dispose();
+    return image;
+  }
   
 }
@@ -0,0 +1,102 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.*;
+
+// A snapshot of a knot's atom positions at one iteration - just enough to draw it. Taking one
+// copies the positions, so the solver can carry straight on while the frame gets sent or drawn.
+public class KnotFrame implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+  private int     iteration;
+  private float   atomRadius;
+  private int[]   strandLengths;
+  private float[] coords; // Packed x,y,z, strand after strand
+
+  public KnotFrame(int iteration, float atomRadius, int[] strandLengths, float[] coords)
+  {
+    int total = 0;
+    for(int i=0; i<strandLengths.length; i++)
+      total += strandLengths[i];
+    if(coords.length != total*3)
+      throw new IllegalArgumentException("Illegal argument: KnotFrame() needs 3 co-ordinates for each of the " + total + " atoms");
+    this.iteration = iteration;
+    this.atomRadius = atomRadius;
+    this.strandLengths = strandLengths;
+    this.coords = coords;
+  }
+  public KnotFrame(KnotData kd)
+  {
+    synchronized(kd)
+    {
+      iteration = kd.getIterationsSoFar();
+      atomRadius = kd.getAtomRadius();
+      strandLengths = new int[kd.numStrands()];
+      for(int i=0; i<strandLengths.length; i++)
+        strandLengths[i] = kd.strandLength(i);
+      coords = kd.getCoordinates(null);
+    }
+  }
+
+  public int getIteration()
+  {
+    return iteration;
+  }
+  public float getAtomRadius()
+  {
+    return atomRadius;
+  }
+  public int numStrands()
+  {
+    return strandLengths.length;
+  }
+  public int numAtoms()
+  {
+    return coords.length / 3;
+  }
+  public int[] getStrandLengths() // Not a copy - don't alter it
+  {
+    return strandLengths;
+  }
+  public float[] getCoordinates() // Not a copy - don't alter it
+  {
+    return coords;
+  }
+
+  // Builds a KnotData holding the frame's atoms (with no forces), e.g. for KnotDataViewer
+  public KnotData toKnotData()
+  {
+    KnotData kd = new KnotData();
+    kd.setParameters(atomRadius, kd.getLeashLength(), kd.getDeltaParameter(), kd.getEtaParameter(), kd.getSkippedParameter());
+    int a = 0;
+    float[][] x = new float[strandLengths.length][], y = new float[strandLengths.length][], z = new float[strandLengths.length][];
+    for(int i=0; i<strandLengths.length; i++)
+    {
+      x[i] = new float[strandLengths[i]];
+      y[i] = new float[strandLengths[i]];
+      z[i] = new float[strandLengths[i]];
+      for(int j=0; j<strandLengths[i]; j++, a++)
+      {
+        x[i][j] = coords[a*3];
+        y[i][j] = coords[a*3+1];
+        z[i][j] = coords[a*3+2];
+      }
+    }
+    kd.addStrands(x, y, z, null, null, null);
+    return kd;
+  }
+}
@@ -0,0 +1,137 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.awt.*;
+import javax.swing.*;
+import java.io.*;
+import java.net.*;
+
+// Receives frames from a KnotFrameServer (see there for the format). Run on its own it opens a
+// window with a KnotDataViewer showing the remote run.
+public class KnotFrameClient
+{
+  private Socket socket;
+  private DataInputStream in;
+
+  // Where we're up to, to apply the DELTA frames to
+  private float   atomRadius;
+  private int[]   strandLengths;
+  private int[]   q;
+  private float[] origin = new float[3];
+  private float   step;
+
+  public KnotFrameClient(String host, int port) throws IOException
+  {
+    socket = new Socket(host, port);
+    socket.setTcpNoDelay(true);
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+  }
+
+  // Waits for the next frame
+  public KnotFrame readFrame() throws IOException
+  {
+    int type = in.readByte();
+    int iteration = in.readInt();
+    if(type==KnotFrameServer.KEY)
+    {
+      atomRadius = in.readFloat();
+      strandLengths = new int[in.readInt()];
+      int total = 0;
+      for(int i=0; i<strandLengths.length; i++)
+        total += (strandLengths[i] = in.readInt());
+      origin[0] = in.readFloat();
+      origin[1] = in.readFloat();
+      origin[2] = in.readFloat();
+      step = in.readFloat();
+      q = new int[total*3];
+      for(int i=0; i<q.length; i++)
+        q[i] = in.readUnsignedShort();
+    }
+    else if(type==KnotFrameServer.DELTA && q!=null)
+    {
+      for(int i=0; i<q.length; i++)
+      {
+        int zigzag = 0, shift = 0, b;
+        do
+        {
+          b = in.readByte();
+          zigzag |= (b & 0x7F) << shift;
+          shift += 7;
+        }
+        while((b & 0x80) != 0);
+        q[i] += (zigzag >>> 1) ^ -(zigzag & 1);
+      }
+    }
+    else
+      throw new IOException("KnotFrameClient.readFrame() got a frame of unknown type " + type);
+
+    float[] coords = new float[q.length];
+    for(int i=0; i<q.length; i++)
+      coords[i] = origin[i%3] + q[i] * step;
+    return new KnotFrame(iteration, atomRadius, strandLengths.clone(), coords);
+  } // End of readFrame()
+
+  public void close() throws IOException
+  {
+    socket.close();
+  }
+
+  public static void main(String[] args)
+  {
+    if(args.length!=2)
+    {
+      System.out.println("Usage: java KnotFrameClient host port");
+      System.exit(1);
+    }
+    try
+    {
+      KnotFrameClient client = new KnotFrameClient(args[0], Integer.parseInt(args[1]));
+      KnotFrame frame = client.readFrame();
+      final KnotDataViewer viewer = new KnotDataViewer(500, 500, new KnotData());
+      viewer.update(frame);
+      final JFrame window = new JFrame("Knot machine - " + args[0] + ":" + args[1]);
+      window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+      window.getContentPane().add(viewer);
+      window.pack();
+      window.setVisible(true);
+      // Only hand the viewer a frame once it has drawn the last one - if it falls behind, it skips frames rather than queueing them
+      final java.util.concurrent.atomic.AtomicReference<KnotFrame> pending = new java.util.concurrent.atomic.AtomicReference<KnotFrame>();
+      final String title = window.getTitle();
+      Runnable updater = new Runnable(){
+                                    public void run()
+                                    {
+                                      KnotFrame f = pending.getAndSet(null);
+                                      viewer.update(f);
+                                      window.setTitle(title + " - iteration " + f.getIteration());
+                                    }};
+      while(true)
+      {
+        frame = client.readFrame();
+        if(pending.getAndSet(frame)==null)
+          SwingUtilities.invokeLater(updater);
+      }
+    }
+    catch(EOFException e) // The server has finished
+    {
+    }
+    catch(IOException e)
+    {
+      System.out.println("IOException in KnotFrameClient: " + e);
+      System.exit(1);
+    }
+  }
+}
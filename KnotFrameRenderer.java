@@ -0,0 +1,202 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.concurrent.*;
+import java.awt.image.*;
+import javax.imageio.*;
+import java.io.*;
+
+// Turns frames into a numbered sequence of PNG images (prefix00000.png, prefix00001.png...) for
+// making videos, without any windows. Each frame gets drawn by a KnotDataViewer, exactly as on
+// screen, and then encoded - both on a pool of worker threads, one viewer per thread. The frames
+// are numbered as they're submitted, so the files come out in the right order however the work
+// gets shared out.
+//
+// submit() just queues the frame and returns, so rendering never holds the solver up. To keep the
+// memory bounded, no more than maxQueued frames can be waiting: if the workers fall that far behind,
+// submit() drops the frame (and counts it, see getFramesDropped()) rather than waiting. Where every
+// frame matters more than the solver's speed, setWaitWhenFull(true) makes it wait instead.
+public class KnotFrameRenderer
+{
+  private File   directory;
+  private String prefix;
+  private int    width, height;
+  private ThreadPoolExecutor pool;
+  private Semaphore queued;
+  private int    framesSubmitted = 0;
+  private int    framesDropped = 0;
+  private boolean waitWhenFull = false;
+  private volatile IOException failure;
+
+  private final ThreadLocal<KnotDataViewer> viewers = new ThreadLocal<KnotDataViewer>(){ // KnotDataViewer isn't thread-safe, so each worker gets its own
+                                  protected KnotDataViewer initialValue()
+                                  {
+                                    return new KnotDataViewer(width, height, new KnotData());
+                                  }};
+
+  public KnotFrameRenderer(File directory, String prefix, int width, int height)
+  {
+    this(directory, prefix, width, height, Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors() * 4);
+  }
+  public KnotFrameRenderer(File directory, String prefix, int width, int height, int threads, int maxQueued)
+  {
+    if(width<1 || height<1 || threads<1 || maxQueued<1)
+      throw new IllegalArgumentException("Illegal argument: KnotFrameRenderer(" + directory + ", " + prefix + ", " + width + ", " + height + ", " + threads + ", " + maxQueued + ")");
+    this.directory = directory;
+    this.prefix = prefix;
+    this.width = width;
+    this.height = height;
+    directory.mkdirs();
+    pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory(){
+                                  public Thread newThread(Runnable r)
+                                  {
+                                    Thread t = new Thread(r, "KnotFrameRenderer");
+                                    t.setDaemon(true);
+                                    t.setPriority(Thread.MIN_PRIORITY); // The solver comes first
+                                    return t;
+                                  }});
+    queued = new Semaphore(maxQueued);
+  }
+
+  // Queues a frame to be drawn and saved. Returns the frame's number in the sequence, or -1 if it was dropped
+  // because the queue was full. (Dropped frames don't get a number, so the files stay numbered without gaps.)
+  public int submit(final KnotFrame frame) throws IOException
+  {
+    if(failure!=null)
+      throw failure;
+    if(waitWhenFull)
+      queued.acquireUninterruptibly();
+    else if(!queued.tryAcquire())
+    {
+      framesDropped++;
+      return -1;
+    }
+    final File file = new File(directory, prefix + String.format("%05d", framesSubmitted) + ".png");
+    pool.execute(new Runnable(){
+                                  public void run()
+                                  {
+                                    try
+                                    {
+                                      KnotDataViewer viewer = viewers.get();
+                                      viewer.update(frame);
+                                      if(!ImageIO.write(viewer.render(), "png", file))
+                                        throw new IOException("No PNG writer available");
+                                    }
+                                    catch(IOException e)
+                                    {
+                                      if(failure==null)
+                                        failure = new IOException("KnotFrameRenderer couldn't write " + file + ": " + e.getMessage(), e);
+                                    }
+                                    finally
+                                    {
+                                      queued.release();
+                                    }
+                                  }});
+    return framesSubmitted++;
+  }
+
+  public int getFramesSubmitted() // Not counting the ones dropped
+  {
+    return framesSubmitted;
+  }
+  public int getFramesDropped()
+  {
+    return framesDropped;
+  }
+
+  // If set, submit() waits for room in the queue instead of dropping frames - which can slow the caller down
+  public void setWaitWhenFull(boolean waitWhenFull)
+  {
+    this.waitWhenFull = waitWhenFull;
+  }
+
+  // Waits for every frame submitted to be written, and shuts the workers down
+  public void finish() throws IOException
+  {
+    pool.shutdown();
+    try
+    {
+      while(!pool.awaitTermination(1, TimeUnit.SECONDS))
+        ;
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    if(failure!=null)
+      throw failure;
+  }
+
+  public static void main(String[] args)
+  {
+    if(args.length!=4 && args.length!=6)
+    {
+      System.out.println("Usage: java KnotFrameRenderer infile outdir every maxiterations [width height]");
+      System.out.println("   or: java KnotFrameRenderer -connect host port outdir   (renders the frames from a KnotFrameServer)");
+      System.exit(1);
+    }
+    if(System.getProperty("java.awt.headless")==null)
+      System.setProperty("java.awt.headless", "true");
+    try
+    {
+      long started = System.currentTimeMillis();
+      KnotFrameRenderer renderer;
+      if(args[0].equals("-connect"))
+      {
+        KnotFrameClient client = new KnotFrameClient(args[1], Integer.parseInt(args[2]));
+        renderer = new KnotFrameRenderer(new File(args[3]), "frame", 500, 500);
+        renderer.setWaitWhenFull(true); // The server skips frames for us if we're slow
+        try
+        {
+          while(true)
+            renderer.submit(client.readFrame());
+        }
+        catch(EOFException e) // The server has finished
+        {
+        }
+      }
+      else
+      {
+        KnotData kd = new KnotData(new FileInputStream(args[0]));
+        int every = Integer.parseInt(args[2]);
+        int maxIterations = Integer.parseInt(args[3]);
+        int width = (args.length==6) ? Integer.parseInt(args[4]) : 500;
+        int height = (args.length==6) ? Integer.parseInt(args[5]) : 500;
+        renderer = new KnotFrameRenderer(new File(args[1]), "frame", width, height);
+        renderer.setWaitWhenFull(true); // Making the frames is the whole point here, so every one should get drawn
+        kd.setConvergenceDetector(new PlateauDetector(KnotMetrics.RMS_DISPLACEMENT, 50, 0.05f));
+        renderer.submit(new KnotFrame(kd));
+        while(kd.getIterationsSoFar() < maxIterations && !kd.hasConverged())
+        {
+          kd.iterate();
+          if(kd.getIterationsSoFar() % every == 0)
+            renderer.submit(new KnotFrame(kd));
+        }
+        if(kd.getIterationsSoFar() % every != 0) // Finish on the final state
+          renderer.submit(new KnotFrame(kd));
+      }
+      renderer.finish();
+      System.out.println("Wrote " + renderer.getFramesSubmitted() + " frames in " + (System.currentTimeMillis() - started) + " ms"
+                         + ((renderer.getFramesDropped() > 0) ? " (dropped " + renderer.getFramesDropped() + ")" : ""));
+    }
+    catch(IOException e)
+    {
+      System.out.println("IOException in KnotFrameRenderer: " + e);
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,326 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.*;
+import java.io.*;
+import java.net.*;
+
+// Publishes the latest frame of a run over TCP, so a run on a headless machine can be watched from
+// elsewhere (see KnotFrameClient). The solver calls publish() now and then; that only swaps a
+// reference, and each client has its own thread which sends it the newest frame whenever it's ready
+// for one. A slow client therefore just misses the frames that came and went while it was busy,
+// and never holds the solver up. Better still, wantsFrame() says whether any client is waiting, so
+// the solver needn't even take a snapshot when nobody would see it.
+//
+// On the wire each frame is a byte saying which kind it is, then the iteration number, then:
+//   KEY:   atom radius, number of strands, each strand's length, the grid origin (x,y,z) and step,
+//          then each co-ordinate as an unsigned 16-bit number of steps from the origin
+//   DELTA: for each co-ordinate, the change in the 16-bit number since the last frame sent to this
+//          client, zigzag-encoded as a varint (one byte while the change is under 64 steps)
+// A client gets a KEY frame first, and again whenever the strands change or an atom leaves the grid.
+//
+// There's no authentication, so by default the server only listens on the loopback interface - to
+// watch from another machine either tunnel the port (e.g. ssh -L) or ask for remote access explicitly.
+public class KnotFrameServer implements Runnable
+{
+  static final int KEY = 0, DELTA = 1;
+
+  private ServerSocket serverSocket;
+  private Thread       acceptThread;
+  private volatile boolean closed = false;
+
+  private final Object lock = new Object();
+  private KnotFrame    latest;
+  private int          sequence = 0; // Goes up with each frame published
+  private int          waitingClients = 0;
+  private Vector<ClientSender> clients = new Vector<ClientSender>();
+
+  public KnotFrameServer(int port) throws IOException // Loopback only
+  {
+    this(port, false);
+  }
+  // With allowRemote set, it listens on every network interface - anyone who can reach the port can watch
+  public KnotFrameServer(int port, boolean allowRemote) throws IOException
+  {
+    serverSocket = allowRemote ? new ServerSocket(port) : new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    acceptThread = new Thread(this, "KnotFrameServer");
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+  }
+
+  public int getPort()
+  {
+    return serverSocket.getLocalPort();
+  }
+
+  // True if a client has sent everything it's been given and is waiting for a new frame
+  public boolean wantsFrame()
+  {
+    synchronized(lock)
+    {
+      return waitingClients > 0;
+    }
+  }
+
+  public void publish(KnotFrame frame)
+  {
+    synchronized(lock)
+    {
+      latest = frame;
+      sequence++;
+      lock.notifyAll();
+    }
+  }
+  // Snapshots the knot and publishes it - but only if a client is waiting, so it costs next to nothing otherwise
+  public void publish(KnotData kd)
+  {
+    if(wantsFrame())
+      publish(new KnotFrame(kd));
+  }
+
+  public int numClients()
+  {
+    return clients.size();
+  }
+
+  public void close()
+  {
+    closed = true;
+    try
+    {
+      serverSocket.close();
+    }
+    catch(IOException e)
+    {
+    }
+    synchronized(lock)
+    {
+      lock.notifyAll();
+    }
+    ArrayList<ClientSender> closing = new ArrayList<ClientSender>(clients); // Each one takes itself out of clients as it closes
+    for(int i=0; i<closing.size(); i++)
+      closing.get(i).close();
+  }
+
+  public void run() // Accepts clients until closed
+  {
+    while(!closed)
+    {
+      try
+      {
+        Socket socket = serverSocket.accept();
+        ClientSender sender = new ClientSender(socket);
+        clients.add(sender);
+        Thread t = new Thread(sender, "KnotFrameServer client " + socket.getRemoteSocketAddress());
+        t.setDaemon(true);
+        t.start();
+      }
+      catch(IOException e)
+      {
+        if(!closed)
+          System.err.println("IOException in KnotFrameServer: " + e);
+      }
+    }
+  }
+
+  private class ClientSender implements Runnable
+  {
+    private Socket socket;
+    private DataOutputStream out;
+    private int lastSequence = 0;
+
+    // Where the client is up to
+    private int[]   lastLengths;
+    private int[]   lastQ, q;
+    private float[] origin = new float[3];
+    private float   step;
+
+    ClientSender(Socket socket) throws IOException
+    {
+      this.socket = socket;
+      socket.setTcpNoDelay(true);
+      out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+    }
+
+    public void run()
+    {
+      KnotFrame frame;
+      try
+      {
+        while(true)
+        {
+          synchronized(lock)
+          {
+            waitingClients++;
+            try
+            {
+              while(sequence==lastSequence && !closed)
+                lock.wait();
+            }
+            finally
+            {
+              waitingClients--;
+            }
+            if(closed)
+              break;
+            frame = latest;
+            lastSequence = sequence;
+          }
+          send(frame);
+        }
+      }
+      catch(IOException e) // The client has gone away
+      {
+      }
+      catch(InterruptedException e)
+      {
+      }
+      close();
+    }
+
+    void close()
+    {
+      clients.remove(this);
+      try
+      {
+        socket.close();
+      }
+      catch(IOException e)
+      {
+      }
+    }
+
+    private void send(KnotFrame frame) throws IOException
+    {
+      float[] c = frame.getCoordinates();
+      boolean key = lastQ==null || !Arrays.equals(lastLengths, frame.getStrandLengths()) || !quantise(c);
+      if(key)
+      {
+        chooseGrid(c, frame.getAtomRadius());
+        quantise(c);
+        lastLengths = frame.getStrandLengths();
+      }
+
+      out.writeByte(key ? KEY : DELTA);
+      out.writeInt(frame.getIteration());
+      if(key)
+      {
+        out.writeFloat(frame.getAtomRadius());
+        out.writeInt(lastLengths.length);
+        for(int i=0; i<lastLengths.length; i++)
+          out.writeInt(lastLengths[i]);
+        out.writeFloat(origin[0]);
+        out.writeFloat(origin[1]);
+        out.writeFloat(origin[2]);
+        out.writeFloat(step);
+        for(int i=0; i<c.length; i++)
+          out.writeShort(q[i]);
+      }
+      else
+        for(int i=0; i<c.length; i++)
+        {
+          int delta = q[i] - lastQ[i];
+          int zigzag = (delta << 1) ^ (delta >> 31);
+          while((zigzag & ~0x7F) != 0)
+          {
+            out.writeByte((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+          }
+          out.writeByte(zigzag);
+        }
+      out.flush();
+
+      int[] temp = lastQ;
+      lastQ = q;
+      q = temp;
+    } // End of send()
+
+    // A grid over the knot's bounding box, with plenty of room around it to move into before we need another KEY frame
+    private void chooseGrid(float[] c, float radius)
+    {
+      float[] min = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+      float extent = 0.0f;
+      float[] max = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+      for(int i=0; i<c.length; i++)
+      {
+        min[i%3] = Math.min(min[i%3], c[i]);
+        max[i%3] = Math.max(max[i%3], c[i]);
+      }
+      for(int k=0; k<3; k++)
+        extent = Math.max(extent, max[k] - min[k]);
+      float margin = extent * 0.5f + radius;
+      for(int k=0; k<3; k++)
+        origin[k] = min[k] - margin;
+      step = Math.max((extent + 2 * margin) / 65535, Float.MIN_NORMAL);
+      lastQ = null;
+    }
+
+    // Fills in q from the co-ordinates. Returns false if anything falls off the grid.
+    private boolean quantise(float[] c)
+    {
+      if(q==null || q.length!=c.length)
+        q = new int[c.length];
+      for(int i=0; i<c.length; i++)
+      {
+        q[i] = Math.round((c[i] - origin[i%3]) / step);
+        if(q[i] < 0 || q[i] > 65535)
+          return false;
+      }
+      return true;
+    }
+  } // End of class ClientSender
+
+  // Runs a knot headless, serving frames to whoever connects
+  public static void main(String[] args)
+  {
+    boolean allowRemote = (args.length==4 && args[0].equals("-remote"));
+    if(args.length!=(allowRemote ? 4 : 3))
+    {
+      System.out.println("Usage: java KnotFrameServer [-remote] infile port maxiterations");
+      System.out.println("  (without -remote it only accepts connections from this machine)");
+      System.exit(1);
+    }
+    int a = allowRemote ? 1 : 0;
+    try
+    {
+      KnotData kd = new KnotData(new FileInputStream(args[a]));
+      KnotFrameServer server = new KnotFrameServer(Integer.parseInt(args[a+1]), allowRemote);
+      int maxIterations = Integer.parseInt(args[a+2]);
+      System.out.println("Serving frames on " + (allowRemote ? "all interfaces" : "loopback") + ", port " + server.getPort());
+      kd.setConvergenceDetector(new PlateauDetector(KnotMetrics.RMS_DISPLACEMENT, 50, 0.05f));
+      server.publish(new KnotFrame(kd));
+      for(int i=0; i<maxIterations && !kd.hasConverged(); i++)
+      {
+        kd.iterate();
+        server.publish(kd);
+      }
+      server.publish(new KnotFrame(kd)); // Make sure the last frame goes out
+      System.out.println("Ran " + kd.getIterationsSoFar() + " iterations" + (kd.hasConverged() ? " (converged)" : ""));
+      System.out.println(kd.getMetrics());
+      Thread.sleep(1000); // Give the clients a chance to get the last frame
+      server.close();
+    }
+    catch(IOException e)
+    {
+      System.out.println("IOException in KnotFrameServer: " + e);
+      System.exit(1);
+    }
+    catch(InterruptedException e)
+    {
+    }
+  }
+}
@@ -0,0 +1,502 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.*;
+import java.io.*;
+
+// Makes knots and links to order, for testing how TONO copes with big inputs. The shapes are closed
+// curves - torus knots (a (p,q) torus "knot" with p and q sharing a factor g is a link of g
+// components) and chains of linked rings - optionally with a smooth random wobble added. Each
+// component becomes one strand, cut open at one point: the end atoms sit one spacing apart but
+// aren't leashed together, and can be given forces pulling them apart (as in Reef.knot).
+//
+// The atoms are spaced leashLength/density apart along the curve. How big the curve gets is set
+// either by the clearance - the closest that two separate bits of tube come, as a multiple of the
+// distance at which RO starts calling it an overlap, so below 1 means some initial overlap - or by
+// asking for a total number of atoms, in which case the clearance is whatever that comes to.
+//
+// write() streams the .knot text out atom by atom, working out each position as it goes, so
+// even 10^7 atoms need next to no memory. toKnotData() builds a KnotData instead, via addStrand().
+public class KnotGenerator
+{
+  private static final int TORUS = 0, CHAIN = 1;
+  private static final int COARSE = 256;         // Points per component for measuring the clearance, and for a first guess at the lengths
+  private static final int SAMPLES_PER_ATOM = 4; // Arc-length table entries per atom
+  private static final int MAX_TABLE = 65536;    // Most arc-length table entries per component
+
+  private int shape, p, q, numComponents;
+
+  // Parameters for the header (the same as Reef.knot's by default)
+  private float atomRadius = 2.0f, leashLength = 1.0f, deltaParameter = 0.2f, etaParameter = 0.2f;
+  private int   skippedParameter = 6;
+  private int   rebuildInterval = 200;
+  private long  randomSeed = new SplittableRandom().nextLong();
+
+  private float density = 1.0f;   // Atoms per leash length
+  private float clearance = 1.5f;
+  private int   totalAtoms = 0;   // If non-zero, this decides the size rather than the clearance
+  private float perturbation = 0.0f; // Size of the wobble, relative to the shape (whose rings etc have radius 1)
+  private int   modes = 4;
+  private float endForce = 0.0f;
+
+  private double[][] wobble; // For each component, the wobble's Fourier coefficients
+  private double     unscaledClearance = -1; // See unscaledClearance() - it only depends on the shape and wobble, so it's kept till they change
+
+  // Worked out by prepare()
+  private double   scale;
+  private int[]    counts;
+  private double[][] arcTable; // For each component: the arc length (unscaled) at evenly spaced parameter values (shared if they're the same shape)
+
+  private KnotGenerator(int shape, int p, int q, int numComponents)
+  {
+    this.shape = shape;
+    this.p = p;
+    this.q = q;
+    this.numComponents = numComponents;
+  }
+
+  // A (p,q) torus knot, winding p times round the axis and q times round the tube. If p and q have a common factor this makes a link.
+  public static KnotGenerator torus(int p, int q)
+  {
+    if(p<1 || q<1)
+      throw new IllegalArgumentException("Illegal argument: KnotGenerator.torus(" + p + ", " + q + ")");
+    return new KnotGenerator(TORUS, p, q, gcd(p, q));
+  }
+  // A chain of n rings, each linked with the next
+  public static KnotGenerator chain(int n)
+  {
+    if(n<1)
+      throw new IllegalArgumentException("Illegal argument: KnotGenerator.chain(" + n + ")");
+    return new KnotGenerator(CHAIN, 0, 0, n);
+  }
+  private static int gcd(int a, int b)
+  {
+    return (b==0) ? a : gcd(b, a % b);
+  }
+
+  public void setParameters(float atomRadius, float leashLength, float deltaParameter, float etaParameter, int skippedParameter)
+  {
+    this.atomRadius = atomRadius;
+    this.leashLength = leashLength;
+    this.deltaParameter = deltaParameter;
+    this.etaParameter = etaParameter;
+    this.skippedParameter = skippedParameter;
+    arcTable = null;
+  }
+  public void setRandomSeed(long randomSeed)
+  {
+    this.randomSeed = randomSeed;
+    wobble = null;
+    arcTable = null;
+  }
+  public void setDensity(float density)
+  {
+    if(density<=0)
+      throw new IllegalArgumentException("Illegal argument: KnotGenerator.setDensity(" + density + ")");
+    this.density = density;
+    arcTable = null;
+  }
+  public void setClearance(float clearance) // Also switches off setTotalAtoms()
+  {
+    if(clearance<=0)
+      throw new IllegalArgumentException("Illegal argument: KnotGenerator.setClearance(" + clearance + ")");
+    this.clearance = clearance;
+    totalAtoms = 0;
+    arcTable = null;
+  }
+  public void setTotalAtoms(int totalAtoms) // Roughly - each component gets a whole number of atoms
+  {
+    if(totalAtoms<numComponents*2)
+      throw new IllegalArgumentException("Illegal argument: KnotGenerator.setTotalAtoms(" + totalAtoms + ")");
+    this.totalAtoms = totalAtoms;
+    arcTable = null;
+  }
+  public void setPerturbation(float amplitude, int modes)
+  {
+    if(amplitude<0 || modes<1)
+      throw new IllegalArgumentException("Illegal argument: KnotGenerator.setPerturbation(" + amplitude + ", " + modes + ")");
+    this.perturbation = amplitude;
+    this.modes = modes;
+    wobble = null;
+    arcTable = null;
+  }
+  public void setEndForce(float endForce)
+  {
+    this.endForce = endForce;
+  }
+
+  public int numComponents()
+  {
+    return numComponents;
+  }
+
+  // The distance at which RO counts two of the generated atoms as overlapping (see KnotData.getContactDistance())
+  public float contactDistance()
+  {
+    return KnotData.contactDistance(atomRadius);
+  }
+
+  // Component c's curve at parameter t (0 to 1 goes once round), in unscaled units
+  private void point(int c, double t, double[] out)
+  {
+    double phi = 2 * Math.PI * t;
+    switch(shape)
+    {
+      case TORUS:
+        // Each component is a (p/g, q/g) torus knot; the others are turned round the tube so they sit evenly in between
+        int g = numComponents;
+        double longitude = (p / g) * phi;
+        double meridian = (q / g) * phi + 2 * Math.PI * c / p;
+        double rr = 1.0 + 0.5 * Math.cos(meridian);
+        out[0] = rr * Math.cos(longitude);
+        out[1] = rr * Math.sin(longitude);
+        out[2] = -0.5 * Math.sin(meridian);
+        break;
+      case CHAIN:
+        // Unit rings 1.3 apart along x, lying alternately flat and on edge, so each one goes through its neighbours
+        double centre = 1.3 * c;
+        if(c % 2 == 0)
+        {
+          out[0] = centre + Math.cos(phi);
+          out[1] = Math.sin(phi);
+          out[2] = 0.0;
+        }
+        else
+        {
+          out[0] = centre + Math.cos(phi);
+          out[1] = 0.0;
+          out[2] = Math.sin(phi);
+        }
+        break;
+    }
+    if(perturbation > 0)
+    {
+      double[] w = wobble[c];
+      for(int m=1; m<=modes; m++) // Smooth and periodic, so the curve stays closed - and smaller wiggles for the higher modes
+      {
+        double cm = Math.cos(m * phi), sm = Math.sin(m * phi);
+        for(int k=0; k<3; k++)
+          out[k] += perturbation * (w[(m-1)*6 + k*2] * cm + w[(m-1)*6 + k*2 + 1] * sm) / m;
+      }
+    }
+  }
+
+  private void makeWobble()
+  {
+    if(wobble!=null)
+      return;
+    SplittableRandom random = new SplittableRandom(randomSeed);
+    unscaledClearance = -1;
+    wobble = new double[numComponents][modes*6];
+    for(int c=0; c<numComponents; c++)
+      for(int k=0; k<wobble[c].length; k++)
+        wobble[c][k] = random.nextDouble() * 2 - 1;
+  }
+
+  private void prepare()
+  {
+    if(arcTable!=null)
+      return;
+    makeWobble();
+
+    // Without a wobble the components are all the same curve, just moved or turned, so they can share one table
+    boolean sameShape = (perturbation == 0);
+    arcTable = new double[numComponents][];
+
+    // A coarse table first, to see how many atoms each component gets - then tables sized to suit, with a few
+    // entries per atom (later used to space the atoms evenly), and the counts again from those
+    double unscaled = (totalAtoms > 0) ? 0.0 : unscaledClearance();
+    for(int c=0; c<numComponents; c++)
+      arcTable[c] = (sameShape && c>0) ? arcTable[0] : arcLengthTable(c, COARSE);
+    workOutCounts(unscaled);
+    for(int c=0; c<numComponents; c++)
+      arcTable[c] = (sameShape && c>0) ? arcTable[0] : arcLengthTable(c, Math.max(COARSE, Math.min(MAX_TABLE, counts[c] * SAMPLES_PER_ATOM)));
+    workOutCounts(unscaled);
+  } // End of prepare()
+
+  // Component c's length up to each of size evenly spaced parameter values (plus the whole way round, at the end)
+  private double[] arcLengthTable(int c, int size)
+  {
+    double[] pt = new double[3], last = new double[3];
+    double[] table = new double[size+1];
+    point(c, 0.0, last);
+    for(int k=1; k<=size; k++)
+    {
+      point(c, (double)k / size, pt);
+      table[k] = table[k-1] + Math.sqrt(sq(pt[0]-last[0]) + sq(pt[1]-last[1]) + sq(pt[2]-last[2]));
+      double[] temp = last;
+      last = pt;
+      pt = temp;
+    }
+    return table;
+  }
+
+  private void workOutCounts(double unscaled) // Sets scale and counts from the arc-length tables (and the unscaled clearance, unless totalAtoms decides)
+  {
+    double totalLength = 0.0;
+    for(int c=0; c<numComponents; c++)
+      totalLength += arcTable[c][arcTable[c].length-1];
+    double spacing = leashLength / density;
+    if(totalAtoms > 0)
+      scale = totalAtoms * spacing / totalLength;
+    else
+      scale = clearance * contactDistance() / unscaled;
+    counts = new int[numComponents];
+    for(int c=0; c<numComponents; c++)
+      counts[c] = Math.max(2, (int)Math.round(arcTable[c][arcTable[c].length-1] * scale / spacing));
+  }
+
+  private static double sq(double a)
+  {
+    return a*a;
+  }
+
+  // The closest approach between separate bits of the curve(s), unscaled. Two points on the same
+  // component only count as separate bits if they're less than half as far apart as they are along
+  // the curve - so neighbouring points don't, and nor does the far side of a plain ring. This uses
+  // a coarse sampling, swept in order of x so that only points within the best distance so far get compared.
+  private double unscaledClearance()
+  {
+    makeWobble();
+    if(unscaledClearance >= 0)
+      return unscaledClearance;
+    int n = numComponents * COARSE;
+    final double[] xs = new double[n*3];
+    double[] compLength = new double[numComponents];
+    double[] along = new double[n];
+    double[] pt = new double[3];
+    for(int c=0; c<numComponents; c++)
+      for(int k=0; k<COARSE; k++)
+      {
+        int i = c*COARSE + k;
+        point(c, (double)k / COARSE, pt);
+        xs[i*3] = pt[0];
+        xs[i*3+1] = pt[1];
+        xs[i*3+2] = pt[2];
+        if(k > 0)
+          along[i] = along[i-1] + Math.sqrt(sq(xs[i*3]-xs[i*3-3]) + sq(xs[i*3+1]-xs[i*3-2]) + sq(xs[i*3+2]-xs[i*3-1]));
+      }
+    for(int c=0; c<numComponents; c++)
+    {
+      int end = c*COARSE + COARSE - 1;
+      compLength[c] = along[end] + Math.sqrt(sq(xs[end*3]-xs[c*COARSE*3]) + sq(xs[end*3+1]-xs[c*COARSE*3+1]) + sq(xs[end*3+2]-xs[c*COARSE*3+2]));
+    }
+
+    Integer[] order = new Integer[n];
+    for(int i=0; i<n; i++)
+      order[i] = Integer.valueOf(i);
+    Arrays.sort(order, new Comparator<Integer>(){
+                                  public int compare(Integer a, Integer b)
+                                  {
+                                    return Double.compare(xs[a.intValue()*3], xs[b.intValue()*3]);
+                                  }});
+    double best = Double.POSITIVE_INFINITY;
+    for(int ii=0; ii<n; ii++)
+    {
+      int i = order[ii].intValue();
+      for(int jj=ii+1; jj<n; jj++)
+      {
+        int j = order[jj].intValue();
+        if(xs[j*3] - xs[i*3] >= best)
+          break;
+        double d = Math.sqrt(sq(xs[i*3]-xs[j*3]) + sq(xs[i*3+1]-xs[j*3+1]) + sq(xs[i*3+2]-xs[j*3+2]));
+        if(d >= best)
+          continue;
+        int ci = i / COARSE, cj = j / COARSE;
+        if(ci==cj)
+        {
+          double arc = Math.abs(along[i] - along[j]);
+          arc = Math.min(arc, compLength[ci] - arc); // It's a loop, so the short way round
+          if(d >= arc / 2)
+            continue;
+        }
+        best = d;
+      }
+    }
+    unscaledClearance = best;
+    return best;
+  } // End of unscaledClearance()
+
+  // The clearance the knot actually gets (which is only interesting if the total atoms were set instead)
+  public float getClearance()
+  {
+    prepare();
+    return (float)(unscaledClearance() * scale / contactDistance());
+  }
+  public int getTotalAtoms()
+  {
+    prepare();
+    int ret = 0;
+    for(int c=0; c<numComponents; c++)
+      ret += counts[c];
+    return ret;
+  }
+
+  // Goes along component c putting each atom's position (and force) into the arrays (any of which may be null) - or,
+  // if out isn't null, writing it there as a line of a .knot file
+  private void generate(int c, float[] x, float[] y, float[] z, float[] xf, float[] yf, float[] zf, Writer out) throws IOException
+  {
+    double[] table = arcTable[c];
+    int size = table.length - 1;
+    double length = table[size];
+    int count = counts[c];
+    double[] pt = new double[3], next = new double[3];
+    int k = 0;
+    StringBuffer line = new StringBuffer(64);
+    for(int a=0; a<count; a++)
+    {
+      // Find where the arc length reaches this atom's share, and interpolate the parameter there
+      double s = (a + 0.5) * length / count;
+      while(k < size-1 && table[k+1] < s)
+        k++;
+      double t = (k + (s - table[k]) / Math.max(table[k+1] - table[k], 1e-300)) / size;
+      point(c, t, pt);
+      float px = (float)(pt[0] * scale), py = (float)(pt[1] * scale), pz = (float)(pt[2] * scale);
+      float fx = 0.0f, fy = 0.0f, fz = 0.0f;
+      if(endForce!=0.0f && (a==0 || a==count-1)) // Pull the ends apart along the curve
+      {
+        point(c, t + ((a==0) ? -1e-4 : 1e-4), next);
+        double dx = next[0]-pt[0], dy = next[1]-pt[1], dz = next[2]-pt[2];
+        double d = Math.sqrt(dx*dx + dy*dy + dz*dz);
+        if(d > 0)
+        {
+          fx = (float)(endForce * dx / d);
+          fy = (float)(endForce * dy / d);
+          fz = (float)(endForce * dz / d);
+        }
+      }
+      if(out!=null)
+      {
+        line.setLength(0);
+        line.append(px).append('\t').append(py).append('\t').append(pz).append('\t');
+        line.append(fx).append('\t').append(fy).append('\t').append(fz).append('\n');
+        out.write(line.toString());
+      }
+      else
+      {
+        x[a] = px;
+        y[a] = py;
+        z[a] = pz;
+        xf[a] = fx;
+        yf[a] = fy;
+        zf[a] = fz;
+      }
+    }
+  } // End of generate()
+
+  // Writes the knot in .knot format
+  public void write(Writer out) throws IOException
+  {
+    prepare();
+    out.write(atomRadius+"\t"+leashLength+"\t"+deltaParameter+"\t"+etaParameter+"\t"+skippedParameter+"\t"+randomSeed+"\t"+rebuildInterval+"\nThis second row of the datafile is ignored. The row above specifies(in this order): atom radius, leash length, deltaParameter, etaParameter, skippedParameter, random seed, rebuild interval\n");
+    for(int c=0; c<numComponents; c++)
+    {
+      generate(c, null, null, null, null, null, null, out);
+      out.write("\n");
+    }
+    out.flush();
+  }
+
+  public KnotData toKnotData()
+  {
+    prepare();
+    KnotData kd = new KnotData();
+    kd.setParameters(atomRadius, leashLength, deltaParameter, etaParameter, skippedParameter);
+    kd.setRandomSeed(randomSeed);
+    float[][] x = new float[numComponents][], y = new float[numComponents][], z = new float[numComponents][];
+    float[][] xf = new float[numComponents][], yf = new float[numComponents][], zf = new float[numComponents][];
+    for(int c=0; c<numComponents; c++)
+    {
+      int n = counts[c];
+      x[c] = new float[n];
+      y[c] = new float[n];
+      z[c] = new float[n];
+      xf[c] = new float[n];
+      yf[c] = new float[n];
+      zf[c] = new float[n];
+      try
+      {
+        generate(c, x[c], y[c], z[c], xf[c], yf[c], zf[c], null);
+      }
+      catch(IOException e) // Can't happen without a Writer
+      {
+      }
+    }
+    kd.addStrands(x, y, z, xf, yf, zf);
+    return kd;
+  }
+
+  public static void main(String[] args)
+  {
+    if(args.length<2)
+    {
+      System.out.println("Usage: java KnotGenerator shape outfile [atoms=N] [clearance=C] [density=D] [perturb=A] [modes=M] [endforce=F] [seed=S]");
+      System.out.println("  where shape is torus:p,q or chain:n");
+      System.exit(1);
+    }
+    try
+    {
+      KnotGenerator gen;
+      String[] shape = args[0].split("[:,]");
+      if(shape[0].equals("torus") && shape.length==3)
+        gen = torus(Integer.parseInt(shape[1]), Integer.parseInt(shape[2]));
+      else if(shape[0].equals("chain") && shape.length==2)
+        gen = chain(Integer.parseInt(shape[1]));
+      else
+        throw new IllegalArgumentException("Unknown shape " + args[0]);
+
+      float perturb = 0.0f;
+      int modes = 4;
+      for(int i=2; i<args.length; i++)
+      {
+        String[] kv = args[i].split("=");
+        if(kv.length!=2)
+          throw new IllegalArgumentException("Expected key=value, not " + args[i]);
+        if(kv[0].equals("atoms"))
+          gen.setTotalAtoms(Integer.parseInt(kv[1]));
+        else if(kv[0].equals("clearance"))
+          gen.setClearance(Float.parseFloat(kv[1]));
+        else if(kv[0].equals("density"))
+          gen.setDensity(Float.parseFloat(kv[1]));
+        else if(kv[0].equals("perturb"))
+          perturb = Float.parseFloat(kv[1]);
+        else if(kv[0].equals("modes"))
+          modes = Integer.parseInt(kv[1]);
+        else if(kv[0].equals("endforce"))
+          gen.setEndForce(Float.parseFloat(kv[1]));
+        else if(kv[0].equals("seed"))
+          gen.setRandomSeed(Long.parseLong(kv[1]));
+        else
+          throw new IllegalArgumentException("Unknown option " + kv[0]);
+      }
+      if(perturb > 0)
+        gen.setPerturbation(perturb, modes);
+
+      long started = System.currentTimeMillis();
+      Writer out = new BufferedWriter(new FileWriter(args[1]), 1 << 20);
+      gen.write(out);
+      out.close();
+      System.out.println("Wrote " + gen.getTotalAtoms() + " atoms in " + gen.numComponents() + " strand(s), clearance " + gen.getClearance()
+                         + ", in " + (System.currentTimeMillis() - started) + " ms");
+    }
+    catch(IOException e)
+    {
+      System.out.println("IOException in KnotGenerator: " + e);
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.*;
+
+// How tight the knot was in one iteration, per strand and altogether. KnotData fills it in from the
+// distances it has already worked out in CL and RO and from the corrections it makes there and in
+// applyForces - apart from the rope length, which gets measured in a pass of its own once CL has
+// finished (a single CL sweep doesn't leave every leash within the leash length, so what CL saw
+// along the way would understate it).
+public class KnotMetrics implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+  // Which metric - for getTotal(), getStrand() and PlateauDetector
+  public static final int ROPE_LENGTH       = 0; // Sum of the leash lengths, after CL
+  public static final int ROPELENGTH        = 1; // Rope length divided by the tube diameter (KnotData.getContactDistance())
+  public static final int MAX_LEASH_STRETCH = 2; // Longest leash CL found, as a multiple of the leash length
+  public static final int MIN_DISTANCE      = 3; // Closest that any atom got to one of its neighbours, in the last RO pass
+  public static final int RMS_DISPLACEMENT  = 4; // RMS over the atoms of how far RO's and CL's corrections moved them
+  public static final int RMS_FORCE         = 5; // RMS over the atoms of how far the force terms moved them
+  public static final int NUM_METRICS       = 6;
+
+  private int     iteration;
+  private float   tubeDiameter;
+  private int[]   atoms;
+  private float[] length, maxStretch, minDist2;
+  private double[] sumSq;      // Sum of squared correction lengths
+  private double[] forceSumSq; // Sum of squared moves by the force terms - kept apart, since a steady pull would
+                               // otherwise put a floor under RMS_DISPLACEMENT and PlateauDetector would take that for a plateau
+
+  KnotMetrics(int iteration, int numStrands, float tubeDiameter)
+  {
+    this.iteration = iteration;
+    this.tubeDiameter = tubeDiameter;
+    atoms = new int[numStrands];
+    length = new float[numStrands];
+    maxStretch = new float[numStrands];
+    minDist2 = new float[numStrands];
+    sumSq = new double[numStrands];
+    forceSumSq = new double[numStrands];
+    java.util.Arrays.fill(minDist2, Float.POSITIVE_INFINITY);
+  }
+
+  // Called by KnotData as it goes along
+  void leashesDone(int strandNum, int numAtoms, float strandLength, float strandMaxStretch, double strandSumSq)
+  {
+    atoms[strandNum] = numAtoms;
+    length[strandNum] = strandLength;
+    maxStretch[strandNum] = strandMaxStretch;
+    sumSq[strandNum] += strandSumSq;
+  }
+  void overlapPassStarted()
+  {
+    java.util.Arrays.fill(minDist2, Float.POSITIVE_INFINITY);
+  }
+  void overlapsDone(int strandNum, float strandMinDist2, double strandSumSq)
+  {
+    minDist2[strandNum] = Math.min(minDist2[strandNum], strandMinDist2);
+    sumSq[strandNum] += strandSumSq;
+  }
+  void forcesDone(int strandNum, double strandSumSq)
+  {
+    forceSumSq[strandNum] += strandSumSq;
+  }
+
+  public int getIteration()
+  {
+    return iteration;
+  }
+  public int numStrands()
+  {
+    return atoms.length;
+  }
+
+  public float getStrand(int which, int strandNum)
+  {
+    switch(which)
+    {
+      case ROPE_LENGTH:       return length[strandNum];
+      case ROPELENGTH:        return length[strandNum] / tubeDiameter;
+      case MAX_LEASH_STRETCH: return maxStretch[strandNum];
+      case MIN_DISTANCE:      return (float)Math.sqrt(minDist2[strandNum]);
+      case RMS_DISPLACEMENT:  return rms(sumSq[strandNum], atoms[strandNum]);
+      case RMS_FORCE:         return rms(forceSumSq[strandNum], atoms[strandNum]);
+    }
+    throw new IllegalArgumentException("Illegal argument: KnotMetrics.getStrand(" + which + ", " + strandNum + ")");
+  }
+
+  public float getTotal(int which)
+  {
+    float ret = 0.0f;
+    int totalAtoms = 0;
+    double totalSumSq = 0.0;
+    switch(which)
+    {
+      case ROPE_LENGTH:
+      case ROPELENGTH:
+        for(int i=0; i<length.length; i++)
+          ret += getStrand(which, i);
+        return ret;
+      case MAX_LEASH_STRETCH:
+        for(int i=0; i<maxStretch.length; i++)
+          ret = Math.max(ret, maxStretch[i]);
+        return ret;
+      case MIN_DISTANCE:
+        ret = Float.POSITIVE_INFINITY;
+        for(int i=0; i<minDist2.length; i++)
+          ret = Math.min(ret, minDist2[i]);
+        return (float)Math.sqrt(ret);
+      case RMS_DISPLACEMENT:
+      case RMS_FORCE:
+        for(int i=0; i<atoms.length; i++)
+        {
+          totalAtoms += atoms[i];
+          totalSumSq += (which==RMS_DISPLACEMENT) ? sumSq[i] : forceSumSq[i];
+        }
+        return rms(totalSumSq, totalAtoms);
+    }
+    throw new IllegalArgumentException("Illegal argument: KnotMetrics.getTotal(" + which + ")");
+  }
+
+  private static float rms(double sumSq, int atoms)
+  {
+    return (atoms==0) ? 0.0f : (float)Math.sqrt(sumSq / atoms);
+  }
+
+  public String toString()
+  {
+    StringBuffer ret = new StringBuffer("Iteration " + iteration + ": rope length, ropelength, max leash stretch, min distance, RMS displacement, RMS force\n");
+    for(int i=0; i<numStrands(); i++)
+    {
+      ret.append("Strand " + i);
+      for(int which=0; which<NUM_METRICS; which++)
+        ret.append("\t" + getStrand(which, i));
+      ret.append("\n");
+    }
+    ret.append("Total");
+    for(int which=0; which<NUM_METRICS; which++)
+      ret.append("\t" + getTotal(which));
+    ret.append("\n");
+    return ret.toString();
+  }
+}
@@ -0,0 +1,49 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.nio.*;
+
+// Where a KnotData keeps its atoms. FN, RO, CL and the ForceTerms all get at the atoms through this,
+// by number: atoms are numbered consecutively through the strands, so strand i is atoms strandStart(i)
+// up to (but not including) strandStart(i+1). The storage also hands out the buffers for the neighbour
+// table and FN's scratch space, so those live in the same kind of memory as the atoms.
+//
+// Normally a KnotData keeps a KnotAtom object per atom on the heap. OffHeapStorage keeps everything in
+// direct (or file-mapped) buffers instead, for knots far too big for that.
+public interface KnotStorage
+{
+  public int numStrands();
+  public int strandStart(int strandNum); // strandStart(numStrands()) is numAtoms()
+  public int numAtoms();
+
+  public float getX(int atomNum);
+  public float getY(int atomNum);
+  public float getZ(int atomNum);
+  public void setPosition(int atomNum, float x, float y, float z);
+  public void move(int atomNum, float dx, float dy, float dz); // Adds to the position
+
+  // The per-atom forces given in the knot file (see AtomForces)
+  public float getXf(int atomNum);
+  public float getYf(int atomNum);
+  public float getZf(int atomNum);
+  public void setForce(int atomNum, float xf, float yf, float zf);
+
+  // Fresh buffers, filled with zeros. Only the absolute get() and put() methods get used on them.
+  public IntBuffer allocateInts(int n);
+  public LongBuffer allocateLongs(int n);
+  public FloatBuffer allocateFloats(int n);
+}
@@ -0,0 +1,236 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.*;
+import java.math.BigInteger;
+
+// Checks whether a knot is still the same knot - that no strand has passed through another (or
+// itself) along the way. The strands are open, so they first get joined up into one closed loop:
+// each strand's end is joined to the nearest free end of another strand, by a path that goes out
+// a long way (well clear of the knot) and back in again. Which ends get joined is decided once,
+// from the knot as it is when the KnotTopology is made, so that the same knot is always closed the
+// same way however its ends move later.
+//
+// What gets compared is the knot determinant (the Alexander polynomial at -1), worked out from the
+// crossings of a projection of the closed loop. Passing strands through each other usually changes
+// it - untying gives 1 - though knots that differ can share a determinant (the reef and granny
+// knots both have 9), so it's a check rather than a proof.
+public class KnotTopology
+{
+  private static final double FAR = 1.0e4; // How far out the joining paths go, relative to the knot's size
+
+  private int[]     order;    // The strands, in the order they're joined up
+  private boolean[] reversed; // Which of them get followed backwards
+
+  public KnotTopology(KnotData kd)
+  {
+    int numStr = kd.numStrands();
+    if(numStr==0)
+      throw new IllegalArgumentException("Illegal argument: KnotTopology(" + kd + ") needs at least one strand");
+    order = new int[numStr];
+    reversed = new boolean[numStr];
+    boolean[] used = new boolean[numStr];
+    used[0] = true;
+    KnotStorage atoms = kd.getStorage();
+    int tail = end(atoms, 0, false);
+    for(int k=1; k<numStr; k++) // Each time, carry on from the nearest end that's left
+    {
+      float best = Float.POSITIVE_INFINITY;
+      for(int s=0; s<numStr; s++)
+        for(int e=0; e<2 && !used[s]; e++)
+        {
+          float d = distance2(atoms, tail, end(atoms, s, e==0));
+          if(d < best)
+          {
+            best = d;
+            order[k] = s;
+            reversed[k] = (e==1);
+          }
+        }
+      used[order[k]] = true;
+      tail = end(atoms, order[k], reversed[k]);
+    }
+  }
+
+  private static int end(KnotStorage atoms, int strandNum, boolean first) // The number of the first or last atom of a strand
+  {
+    return first ? atoms.strandStart(strandNum) : atoms.strandStart(strandNum+1) - 1;
+  }
+  private static float distance2(KnotStorage atoms, int a, int b)
+  {
+    float dx = atoms.getX(a) - atoms.getX(b), dy = atoms.getY(a) - atoms.getY(b), dz = atoms.getZ(a) - atoms.getZ(b);
+    return dx*dx + dy*dy + dz*dz;
+  }
+  private static double[] position(KnotStorage atoms, int a)
+  {
+    return new double[]{atoms.getX(a), atoms.getY(a), atoms.getZ(a)};
+  }
+
+  // The knot determinant of the knot as it is now
+  public long determinant(KnotData kd)
+  {
+    if(kd.numStrands()!=order.length)
+      throw new IllegalArgumentException("Illegal argument: KnotTopology.determinant(" + kd + ") has a different number of strands");
+    return determinant(project(closedLoop(kd)));
+  }
+
+  // The strands joined up end to end, plus the far-out points joining them
+  private double[][] closedLoop(KnotData kd)
+  {
+    float[] coords = kd.getCoordinates(null);
+    int n = coords.length / 3;
+    double[] centre = new double[3];
+    for(int i=0; i<n; i++)
+      for(int c=0; c<3; c++)
+        centre[c] += coords[i*3+c] / n;
+    double size = 1.0;
+    for(int i=0; i<n; i++)
+      for(int c=0; c<3; c++)
+        size = Math.max(size, Math.abs(coords[i*3+c] - centre[c]));
+
+    KnotStorage atoms = kd.getStorage();
+    double[][] ret = new double[n + order.length*3][];
+    int i = 0;
+    for(int k=0; k<order.length; k++)
+    {
+      int first = atoms.strandStart(order[k]), last = atoms.strandStart(order[k]+1) - 1;
+      for(int j=0; j<=last-first; j++)
+        ret[i++] = position(atoms, reversed[k] ? last-j : first+j);
+      // Out from this strand's tail, round by way of the point halfway between, and in to the next strand's head
+      double[] fromPos = position(atoms, end(atoms, order[k], reversed[k]));
+      double[] toPos = position(atoms, end(atoms, order[(k+1) % order.length], !reversed[(k+1) % order.length]));
+      double[] midPos = {(fromPos[0] + toPos[0]) / 2, (fromPos[1] + toPos[1]) / 2, (fromPos[2] + toPos[2]) / 2};
+      ret[i++] = farOut(fromPos, centre, size);
+      ret[i++] = farOut(midPos, centre, size);
+      ret[i++] = farOut(toPos, centre, size);
+    }
+    return ret;
+  }
+
+  private static double[] farOut(double[] pos, double[] centre, double size) // A point a long way out from the centre, in pos's direction
+  {
+    double[] dir = {pos[0] - centre[0], pos[1] - centre[1], pos[2] - centre[2]};
+    double len = Math.sqrt(dir[0]*dir[0] + dir[1]*dir[1] + dir[2]*dir[2]);
+    if(len==0.0)
+    {
+      dir[0] = 1.0;
+      len = 1.0;
+    }
+    double[] ret = new double[3];
+    for(int c=0; c<3; c++)
+      ret[c] = centre[c] + dir[c] / len * size * FAR;
+    return ret;
+  }
+
+  // Turns the loop to an angle that isn't lined up with anything, so that no two crossings coincide
+  private static double[][] project(double[][] loop)
+  {
+    double ca = Math.cos(0.1234), sa = Math.sin(0.1234), cb = Math.cos(0.0457), sb = Math.sin(0.0457);
+    double[][] ret = new double[loop.length][];
+    for(int i=0; i<loop.length; i++)
+    {
+      double x = loop[i][0] * ca - loop[i][2] * sa;
+      double z = loop[i][0] * sa + loop[i][2] * ca;
+      ret[i] = new double[]{x, loop[i][1] * cb - z * sb, loop[i][1] * sb + z * cb}; // Looking down the z axis
+    }
+    return ret;
+  }
+
+  // The determinant from the diagram: the arcs run from one undercrossing to the next, and each crossing
+  // gives a row of the colouring matrix (twice the over-arc, less the two under-arcs). Deleting a row and
+  // a column leaves a matrix whose determinant is the knot's.
+  private static long determinant(double[][] p)
+  {
+    int n = p.length;
+    Vector<double[]> crossings = new Vector<double[]>(); // Each is {position along the loop of the over-strand, of the under-strand}
+    double dx, dy, ex, ey, den, t, u, za, zb;
+    for(int i=0; i<n; i++)
+      for(int j=i+2; j<n; j++)
+      {
+        if(i==0 && j==n-1) // Those two segments meet
+          continue;
+        double[] p1 = p[i], p2 = p[(i+1) % n], q1 = p[j], q2 = p[(j+1) % n];
+        dx = p2[0] - p1[0];
+        dy = p2[1] - p1[1];
+        ex = q2[0] - q1[0];
+        ey = q2[1] - q1[1];
+        den = dx*ey - dy*ex;
+        if(den==0.0)
+          continue;
+        t = ((q1[0] - p1[0]) * ey - (q1[1] - p1[1]) * ex) / den;
+        u = ((q1[0] - p1[0]) * dy - (q1[1] - p1[1]) * dx) / den;
+        if(t<0.0 || t>=1.0 || u<0.0 || u>=1.0)
+          continue;
+        za = p1[2] + t * (p2[2] - p1[2]);
+        zb = q1[2] + u * (q2[2] - q1[2]);
+        crossings.add((za > zb) ? new double[]{i + t, j + u} : new double[]{j + u, i + t});
+      }
+    int numCr = crossings.size();
+    if(numCr<3) // Nothing that few crossings can be knotted
+      return 1;
+
+    double[] unders = new double[numCr];
+    for(int k=0; k<numCr; k++)
+      unders[k] = crossings.get(k)[1];
+    Arrays.sort(unders); // Arc k runs from the k-th undercrossing to the next one
+
+    BigInteger[][] m = new BigInteger[numCr][numCr];
+    for(int k=0; k<numCr; k++)
+      Arrays.fill(m[k], BigInteger.ZERO);
+    for(int k=0; k<numCr; k++)
+    {
+      double[] c = crossings.get(k);
+      int over = Arrays.binarySearch(unders, c[0]);
+      over = (over < 0) ? -over - 2 : over;
+      if(over < 0)
+        over = numCr - 1; // Before the first undercrossing, so still on the last arc
+      int out = Arrays.binarySearch(unders, c[1]);
+      int in = (out + numCr - 1) % numCr;
+      m[k][over] = m[k][over].add(BigInteger.valueOf(2));
+      m[k][in] = m[k][in].subtract(BigInteger.ONE);
+      m[k][out] = m[k][out].subtract(BigInteger.ONE);
+    }
+    return bareiss(m, numCr - 1).abs().longValue();
+  } // End of determinant()
+
+  // Determinant of the top-left size x size corner of m, by fraction-free elimination (so it's exact). Overwrites m.
+  private static BigInteger bareiss(BigInteger[][] m, int size)
+  {
+    BigInteger prev = BigInteger.ONE;
+    int sign = 1;
+    for(int k=0; k<size-1; k++)
+    {
+      if(m[k][k].signum()==0) // Swap in a row that has something in this column
+      {
+        int r = k+1;
+        while(r<size && m[r][k].signum()==0)
+          r++;
+        if(r==size)
+          return BigInteger.ZERO;
+        BigInteger[] temp = m[k];
+        m[k] = m[r];
+        m[r] = temp;
+        sign = -sign;
+      }
+      for(int i=k+1; i<size; i++)
+        for(int j=k+1; j<size; j++)
+          m[i][j] = m[i][j].multiply(m[k][k]).subtract(m[i][k].multiply(m[k][j])).divide(prev);
+      prev = m[k][k];
+    }
+    return (sign < 0) ? m[size-1][size-1].negate() : m[size-1][size-1];
+  }
+}
@@ -0,0 +1,77 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.*;
+
+// Checks that MultiresTightener's coarse levels don't untie the knot: the decimated knot has to
+// be the same knot as the original (see KnotTopology), and stay so while the tightener works on
+// it. Only the first stretch of iterations gets checked, since with the end forces in Reef.knot
+// and Granny.knot even a plain KnotData run eventually pulls strands through each other (at
+// around iteration 200, when the first stale neighbour table gets replaced).
+public class MultiresTester
+{
+  private static String[] filePaths = {"Reef.knot", "Granny.knot"};
+  private static int levels = 2;
+  private static int iterations = 100;
+  private static int seeds = 3;
+
+  public static void main(String[] args)
+  {
+    if(args.length>0)
+      filePaths = args;
+
+    int failures = 0;
+    try
+    {
+      for(int f=0; f<filePaths.length; f++)
+        for(long seed=1; seed<=seeds; seed++)
+        {
+          KnotData kd = new KnotData(new FileInputStream(filePaths[f]));
+          kd.setRandomSeed(seed);
+          KnotTopology topology = new KnotTopology(kd);
+          long before = topology.determinant(kd);
+
+          MultiresTightener tightener = new MultiresTightener(kd, levels);
+          long coarse = topology.determinant(kd);
+          int level = tightener.getLevel();
+          long after = coarse;
+          int done = 0;
+          while(done < iterations && after == before && tightener.step())
+          {
+            done++;
+            after = topology.determinant(kd);
+          }
+
+          boolean ok = (coarse == before && after == before);
+          if(!ok)
+            failures++;
+          System.out.println((ok ? "OK     " : "FAILED ") + filePaths[f] + " seed " + seed + ": determinant " + before + ", decimated to level "
+                             + level + " " + coarse + ", after " + done + " iterations " + after);
+        }
+    }
+    catch(IOException e)
+    {
+      System.out.println("IOException while initialising KnotData: " + e);
+      System.exit(1);
+    }
+    if(failures > 0)
+    {
+      System.out.println(failures + " failed");
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+// Coarse-to-fine tightening: the knot is first decimated down to a cheap coarse version
+// and tightened there. Whenever the tightener's convergence detector says that level is done
+// (by default, when the atoms' RMS displacement levels off), the knot gets interpolated up
+// to the next finer level (so each level doubles the atom count) until we are back at the
+// resolution the knot was loaded with, and that level is tightened until it levels off too.
+// The knot's own convergence detector (if it has one) is left alone.
+//
+// How far this can go is limited by maxLevels(): the coarse leash has to stay within RO's contact
+// distance, so with the knot files' parameters (R=2, leash 1, as for Reef, Granny and KnotGenerator's
+// defaults) there's only ever one coarse level, and with KnotData's built-in defaults there are none.
+// That's at most half the atoms at the coarse level - and on Reef and Granny, with their forces
+// switched off, both ways converge in 300-500 iterations and about 10ms, so there's nothing to see
+// there. It's only worth using on knots whose leash is well short of the contact distance.
+public class MultiresTightener
+{
+  private KnotData kd;
+  private float targetRadius, targetLeash, targetDelta, targetEta;
+  private int   targetSkipped;
+  private int   curLevel; // 0 is the knot's own resolution, each level above that halves the atom count
+  private ConvergenceDetector detector = new PlateauDetector(KnotMetrics.RMS_DISPLACEMENT, 50, 0.05f);
+
+  private int   maxIterationsPerLevel = 20000;
+  private int   itersThisLevel;
+  private boolean finished;
+
+  public MultiresTightener(KnotData kd, int levels)
+  {
+    this.kd = kd;
+    targetRadius  = kd.getAtomRadius();
+    targetLeash   = kd.getLeashLength();
+    targetDelta   = kd.getDeltaParameter();
+    targetEta     = kd.getEtaParameter();
+    targetSkipped = kd.getSkippedParameter();
+
+    curLevel = Math.min(Math.max(levels, 0), maxLevels(targetRadius, targetLeash));
+    finished = false;
+    setLevelParameters(curLevel);
+    if(curLevel > 0)
+      kd.decimate(1 << curLevel);
+    else
+      kd.findNeighboursFN();
+    itersThisLevel = 0;
+  }
+
+  // How many coarse levels a knot can take. Each level doubles the leash, and once the leash is longer than
+  // the contact distance another strand could slip between two beads without RO ever seeing an overlap -
+  // and the decimated knot itself may already have strands cutting through each other. (Growing the radius
+  // to keep up doesn't help: the knot starts out with deep overlaps, and RO's corrections for those are
+  // big enough to throw strands through each other.) So any levels beyond that aren't used.
+  public static int maxLevels(float radius, float leash)
+  {
+    int ret = 0;
+    while(leash * (2 << ret) <= KnotData.contactDistance(radius))
+      ret++;
+    return ret;
+  }
+
+  // Coarse levels have their leashes lengthened by 2^level, and skippedParameter, which counts atoms, shrunk to
+  // skip the same distance along the strand. Everything else stays as it is at the knot's own resolution.
+  private void setLevelParameters(int level)
+  {
+    int skipped = (level == 0) ? targetSkipped : Math.max(1, (int)Math.ceil(targetSkipped / (double)(1 << level)));
+    kd.setParameters(targetRadius, targetLeash * (1 << level), targetDelta, targetEta, skipped);
+  }
+
+  // Carries out one iteration, moving on to the next finer level if this one has levelled off.
+  // Returns false once the finest level has levelled off (in which case nothing was done).
+  public boolean step()
+  {
+    if(finished)
+      return false;
+
+    kd.iterate();
+    itersThisLevel++;
+
+    if(detector.hasConverged(kd.getMetrics()) || itersThisLevel >= maxIterationsPerLevel)
+    {
+      if(curLevel == 0)
+        finished = true;
+      else
+      {
+        curLevel--;
+        setLevelParameters(curLevel);
+        kd.interpolate(); // Also refreshes the neighbour lists using the new parameters
+        detector.reset();
+        itersThisLevel = 0;
+      }
+    }
+    return true;
+  }
+
+  public int getLevel()
+  {
+    return curLevel;
+  }
+  public boolean isFinished()
+  {
+    return finished;
+  }
+
+  // Decides when each level is done (a PlateauDetector on the RMS displacement unless set otherwise)
+  public void setConvergenceDetector(ConvergenceDetector detector)
+  {
+    if(detector==null)
+      throw new IllegalArgumentException("Illegal argument: MultiresTightener.setConvergenceDetector(null)");
+    this.detector = detector;
+    detector.reset();
+  }
+
+  public void setMaxIterationsPerLevel(int maxIterationsPerLevel)
+  {
+    this.maxIterationsPerLevel = maxIterationsPerLevel;
+  }
+}
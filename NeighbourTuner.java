@@ -0,0 +1,151 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.*;
+
+// Picks etaParameter and the neighbour-table rebuild interval as the run goes along. A bigger eta
+// means longer neighbour lists (so slower RO passes) but the table stays good for longer, so it
+// needs rebuilding less often; the best balance depends on the knot. After each rebuild KnotData
+// reports how long the last period took per iteration (rebuilding plus RO), and the tuner
+// hill-climbs on that, nudging one of the two values at a time and turning back whenever a nudge
+// made things slower. If the new table shows up overlaps that the old one had missed, the old one
+// was being used for too long: that trumps the timings, and both values get backed off.
+//
+// New values only take effect as KnotData gets round to them - eta at the next build, which may
+// already be under way - so a period's figures only count once they're for the values last asked
+// for. Until then the tuner waits, apart from backing off if overlaps got missed.
+//
+// Timings are noisy, so the values wander a little even once they're about right. KnotData logs
+// every change in its algoProgress, so good values can be copied into a .knot file's header for
+// repeatable batch runs.
+public class NeighbourTuner implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+  private static final float STEP = 1.25f; // Each nudge multiplies or divides by this
+
+  private float minEta, maxEta;
+  private int   minInterval, maxInterval;
+
+  private float eta;
+  private int   interval;
+  private boolean nudgingEta = true; // Otherwise the interval
+  private boolean upwards = true;
+
+  private double baseCost = -1; // Cost per iteration (ns) at the values we last moved away from (-1 if not known)
+  private float  baseEta;
+  private int    baseInterval;
+
+  private boolean awaiting = false; // Whether KnotData has yet to run a period with the values it last applied (below)
+  private float   appliedEta;
+  private int     appliedInterval;
+
+  public NeighbourTuner(float minEta, float maxEta, int minInterval, int maxInterval)
+  {
+    if(minEta<=0 || maxEta<minEta || minInterval<1 || maxInterval<minInterval)
+      throw new IllegalArgumentException("Illegal argument: NeighbourTuner(" + minEta + ", " + maxEta + ", " + minInterval + ", " + maxInterval + ")");
+    this.minEta = minEta;
+    this.maxEta = maxEta;
+    this.minInterval = minInterval;
+    this.maxInterval = maxInterval;
+  }
+
+  // Called by KnotData after a rebuild, with the figures for the period since the one before, and the
+  // values which were in use. Returns true if it wants different values (see getEta(), getInterval()),
+  // in which case KnotData calls valuesApplied() once it has put them in.
+  boolean rebuildDone(float currentEta, int currentInterval, int iterations, long rebuildNanos, long roNanos, int missedOverlaps)
+  {
+    boolean measured = !awaiting || (currentEta==appliedEta && currentInterval==appliedInterval);
+    if(measured)
+      awaiting = false;
+    // What's in force from here on - which, while we're waiting, is what we last asked for
+    float fromEta = measured ? currentEta : appliedEta;
+    int fromInterval = measured ? currentInterval : appliedInterval;
+    eta = fromEta;
+    interval = fromInterval;
+    if(iterations<1)
+      return false;
+    double cost = (rebuildNanos + roNanos) / (double)iterations;
+
+    if(missedOverlaps > 0) // Not safe - more skin, and rebuild sooner
+    {
+      eta = clampEta(eta * STEP);
+      interval = clampInterval(Math.round(interval / STEP));
+      baseCost = -1;
+      return eta!=fromEta || interval!=fromInterval;
+    }
+    if(!measured) // These figures are for values from before the last change, so there's nothing to judge yet
+      return false;
+
+    if(baseCost >= 0 && cost > baseCost) // The last nudge made it worse - go back, and next time try the other way, or the other value
+    {
+      eta = baseEta;
+      interval = baseInterval;
+      if(upwards)
+        upwards = false;
+      else
+      {
+        upwards = true;
+        nudgingEta = !nudgingEta;
+      }
+    }
+    else
+    {
+      baseCost = cost;
+      baseEta = eta;
+      baseInterval = interval;
+    }
+
+    // Nudge from the base. If that one's stuck against its bound, nudge the other instead
+    for(int tries=0; tries<2; tries++)
+    {
+      if(nudgingEta)
+        eta = clampEta(upwards ? baseEta * STEP : baseEta / STEP);
+      else
+        interval = clampInterval(Math.round(upwards ? baseInterval * STEP : baseInterval / STEP));
+      if(eta!=baseEta || interval!=baseInterval)
+        break;
+      nudgingEta = !nudgingEta;
+    }
+    return eta!=currentEta || interval!=currentInterval;
+  } // End of rebuildDone()
+
+  // The values KnotData has actually gone over to (it may have had to adjust getInterval())
+  void valuesApplied(float appliedEta, int appliedInterval)
+  {
+    this.appliedEta = appliedEta;
+    this.appliedInterval = appliedInterval;
+    awaiting = true;
+  }
+
+  private float clampEta(float e)
+  {
+    return Math.max(minEta, Math.min(maxEta, e));
+  }
+  private int clampInterval(int i)
+  {
+    return Math.max(minInterval, Math.min(maxInterval, i));
+  }
+
+  public float getEta()
+  {
+    return eta;
+  }
+  public int getInterval()
+  {
+    return interval;
+  }
+}
@@ -0,0 +1,218 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+// Keeps a KnotData's atoms outside the Java heap, for knots far too big to have a KnotAtom object per
+// atom (see KnotData(File, File)). The coordinates and forces live in direct NIO buffers, or are mapped
+// from a backing file, which then always holds the knot's current state. The neighbour table and FN's
+// scratch space get direct buffers as well, so the heap only holds a few small per-strand arrays and
+// stays small however big the knot gets (but remember to raise -XX:MaxDirectMemorySize).
+//
+// KnotData runs its usual algorithms on it, so a knot gives identical results whichever storage it's in.
+// Call close() when finished, to let go of the memory. A serialised knot (e.g. a checkpoint) comes back
+// in direct buffers, without its backing file.
+public class OffHeapStorage implements KnotStorage, Serializable
+{
+  private static final long serialVersionUID = 1L;
+  private static final int FLOATS_PER_ATOM = 6; // x, y, z, xf, yf, zf
+
+  private int[] strandStart;
+  private int   numAtoms;
+  private transient FloatBuffer x, y, z, xf, yf, zf;
+
+  private transient RandomAccessFile backingFile;
+  private transient MappedByteBuffer mapped;
+
+  // Batch tightening of a knot too big for the heap: java OffHeapStorage infile outfile iterations [backingfile]
+  public static void main(String[] args)
+  {
+    if(args.length<3 || args.length>4)
+    {
+      System.out.println("Usage: java OffHeapStorage infile outfile iterations [backingfile]");
+      System.exit(1);
+    }
+    try
+    {
+      KnotData kd = new KnotData(new File(args[0]), (args.length==4) ? new File(args[3]) : null);
+      int iterations = Integer.parseInt(args[2]);
+      for(int i=0; i<iterations; i++)
+        kd.iterate();
+      BufferedWriter out = new BufferedWriter(new FileWriter(args[1]));
+      kd.write(out);
+      out.close();
+      ((OffHeapStorage)kd.getStorage()).close();
+    }
+    catch(IOException e)
+    {
+      System.out.println("IOException while running OffHeapStorage: " + e);
+    }
+  }
+
+  // Room for strands of the given lengths, all the atoms at the origin with no forces. If backing isn't
+  // null the coordinates and forces get kept in that file (which is created, or overwritten).
+  public OffHeapStorage(int[] strandLengths, File backing) throws IOException
+  {
+    strandStart = new int[strandLengths.length+1];
+    for(int i=0; i<strandLengths.length; i++)
+    {
+      if(strandLengths[i]<0 || strandStart[i] + (long)strandLengths[i] > Integer.MAX_VALUE)
+        throw new IllegalArgumentException("Illegal argument: OffHeapStorage() can't have a strand of " + strandLengths[i] + " atoms here");
+      strandStart[i+1] = strandStart[i] + strandLengths[i];
+    }
+    numAtoms = strandStart[strandLengths.length];
+    if(backing==null)
+    {
+      x  = allocateFloats(numAtoms);
+      y  = allocateFloats(numAtoms);
+      z  = allocateFloats(numAtoms);
+      xf = allocateFloats(numAtoms);
+      yf = allocateFloats(numAtoms);
+      zf = allocateFloats(numAtoms);
+    }
+    else
+    {
+      // One mapping holding the six arrays one after the other
+      long bytes = (long)numAtoms * FLOATS_PER_ATOM * 4;
+      if(bytes > Integer.MAX_VALUE)
+        throw new IOException("Knot too big to map from one file: " + numAtoms + " atoms");
+      backingFile = new RandomAccessFile(backing, "rw");
+      backingFile.setLength(0); // (So none of an old file's contents show through)
+      backingFile.setLength(bytes);
+      mapped = backingFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+      mapped.order(ByteOrder.nativeOrder());
+      x  = slice(0);
+      y  = slice(1);
+      z  = slice(2);
+      xf = slice(3);
+      yf = slice(4);
+      zf = slice(5);
+    }
+  }
+  // The buffers aren't Serializable, so the atoms get written out one by one
+  private void writeObject(ObjectOutputStream out) throws IOException
+  {
+    if(x==null)
+      throw new NotSerializableException("OffHeapStorage has been closed");
+    out.defaultWriteObject();
+    for(int a=0; a<numAtoms; a++)
+    {
+      out.writeFloat(x.get(a));
+      out.writeFloat(y.get(a));
+      out.writeFloat(z.get(a));
+      out.writeFloat(xf.get(a));
+      out.writeFloat(yf.get(a));
+      out.writeFloat(zf.get(a));
+    }
+  }
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+  {
+    in.defaultReadObject();
+    x  = allocateFloats(numAtoms);
+    y  = allocateFloats(numAtoms);
+    z  = allocateFloats(numAtoms);
+    xf = allocateFloats(numAtoms);
+    yf = allocateFloats(numAtoms);
+    zf = allocateFloats(numAtoms);
+    for(int a=0; a<numAtoms; a++)
+    {
+      setPosition(a, in.readFloat(), in.readFloat(), in.readFloat());
+      setForce(a, in.readFloat(), in.readFloat(), in.readFloat());
+    }
+  }
+
+  private FloatBuffer slice(int field)
+  {
+    mapped.position(field * numAtoms * 4);
+    mapped.limit((field+1) * numAtoms * 4);
+    FloatBuffer ret = mapped.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+    mapped.clear();
+    return ret;
+  }
+
+  // Lets go of the coordinates and forces (and flushes and closes the backing file, if there is one). The
+  // knot can't be used afterwards. Its neighbour table gets freed along with the KnotData.
+  public void close() throws IOException
+  {
+    if(mapped!=null)
+      mapped.force();
+    if(backingFile!=null)
+      backingFile.close();
+    // Direct buffers are freed once nothing refers to them
+    x = y = z = xf = yf = zf = null;
+    mapped = null;
+    backingFile = null;
+  }
+
+  public int numStrands()
+  {
+    return strandStart.length - 1;
+  }
+  public int strandStart(int strandNum)
+  {
+    return strandStart[strandNum];
+  }
+  public int numAtoms()
+  {
+    return numAtoms;
+  }
+
+  public float getX(int atomNum) { return x.get(atomNum); }
+  public float getY(int atomNum) { return y.get(atomNum); }
+  public float getZ(int atomNum) { return z.get(atomNum); }
+  public void setPosition(int atomNum, float newX, float newY, float newZ)
+  {
+    x.put(atomNum, newX);
+    y.put(atomNum, newY);
+    z.put(atomNum, newZ);
+  }
+  public void move(int atomNum, float dx, float dy, float dz)
+  {
+    x.put(atomNum, x.get(atomNum) + dx);
+    y.put(atomNum, y.get(atomNum) + dy);
+    z.put(atomNum, z.get(atomNum) + dz);
+  }
+  public float getXf(int atomNum) { return xf.get(atomNum); }
+  public float getYf(int atomNum) { return yf.get(atomNum); }
+  public float getZf(int atomNum) { return zf.get(atomNum); }
+  public void setForce(int atomNum, float newXf, float newYf, float newZf)
+  {
+    xf.put(atomNum, newXf);
+    yf.put(atomNum, newYf);
+    zf.put(atomNum, newZf);
+  }
+
+  public IntBuffer allocateInts(int n)
+  {
+    return ByteBuffer.allocateDirect(n * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+  }
+  public LongBuffer allocateLongs(int n)
+  {
+    return ByteBuffer.allocateDirect(n * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+  }
+  public FloatBuffer allocateFloats(int n)
+  {
+    return ByteBuffer.allocateDirect(n * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+  }
+
+  public String toString()
+  {
+    return "off-heap storage" + ((backingFile==null) ? "" : " (mapped from a file)");
+  }
+}
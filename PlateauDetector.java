@@ -0,0 +1,82 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+// Converged once one of the metrics has levelled off: the metric is averaged over windows of
+// consecutive iterations, and when one window's average is within the tolerance (relative) of
+// the previous window's, that's a plateau. It doesn't count while CL is still finding leashes
+// stretched beyond maxStretch times the leash length, though: a steady pull (AtomForces, say) gets
+// undone by CL just as steadily, so the corrections level off while the knot is still being dragged
+// about - and a knot that's really tight has its leashes back within the leash length.
+public class PlateauDetector implements ConvergenceDetector
+{
+  private static final long serialVersionUID = 1L;
+  private int   which;     // One of the KnotMetrics constants
+  private int   window;
+  private float tolerance;
+  private float maxStretch = 1.05f;
+
+  private double windowSum;
+  private int    windowCount;
+  private double lastAverage;
+  private boolean haveLast;
+
+  public PlateauDetector(int which, int window, float tolerance)
+  {
+    if(which<0 || which>=KnotMetrics.NUM_METRICS || window<1)
+      throw new IllegalArgumentException("Illegal argument: PlateauDetector(" + which + ", " + window + ", " + tolerance + ")");
+    this.which = which;
+    this.window = window;
+    this.tolerance = tolerance;
+    reset();
+  }
+
+  public boolean hasConverged(KnotMetrics metrics)
+  {
+    windowSum += metrics.getTotal(which);
+    windowCount++;
+    if(windowCount < window)
+      return false;
+
+    double average = windowSum / windowCount;
+    boolean ret = haveLast && Math.abs(average - lastAverage) <= tolerance * Math.abs(lastAverage)
+                  && metrics.getTotal(KnotMetrics.MAX_LEASH_STRETCH) <= maxStretch;
+    lastAverage = average;
+    haveLast = true;
+    windowSum = 0.0;
+    windowCount = 0;
+    return ret;
+  }
+
+  // Float.POSITIVE_INFINITY goes by the plateau alone
+  public void setMaxStretch(float maxStretch)
+  {
+    if(!(maxStretch >= 1.0f))
+      throw new IllegalArgumentException("Illegal argument: PlateauDetector.setMaxStretch(" + maxStretch + ")");
+    this.maxStretch = maxStretch;
+  }
+  public float getMaxStretch()
+  {
+    return maxStretch;
+  }
+
+  public void reset()
+  {
+    windowSum = 0.0;
+    windowCount = 0;
+    haveLast = false;
+  }
+}
@@ -0,0 +1,49 @@
+/*
+This file is part of TONO.
+
+    TONO is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    TONO is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with TONO.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+// The same push on every atom, like gravity
+public class UniformForce implements ForceTerm
+{
+  private static final long serialVersionUID = 1L;
+  private float fx, fy, fz;
+  private KnotStorage atoms;
+
+  public UniformForce(float fx, float fy, float fz)
+  {
+    this.fx = fx;
+    this.fy = fy;
+    this.fz = fz;
+  }
+
+  public void bind(KnotData kd)
+  {
+    atoms = kd.getStorage();
+  }
+
+  public void apply(int iteration, double[] sumSq)
+  {
+    float mag2 = fx*fx + fy*fy + fz*fz;
+    if(mag2==0.0f)
+      return;
+    for(int i=0; i<atoms.numStrands(); i++)
+    {
+      for(int a=atoms.strandStart(i); a<atoms.strandStart(i+1); a++)
+        atoms.move(a, fx, fy, fz);
+      sumSq[i] += mag2 * (atoms.strandStart(i+1) - atoms.strandStart(i));
+    }
+  }
+}